@@ -0,0 +1,182 @@
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Audience { // the spectators of a room, the room hands over each event once and the audience delivers it on its own threads, so the players never wait for spectators
+    private static final ExecutorService fanout = Executors.newWorkStealingPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)); // separate from the room workers
+    private static final AtomicInteger total = new AtomicInteger(); // spectators of all rooms, for the metrics
+
+    private final Set<Spectator> spectators = ConcurrentHashMap.newKeySet();
+    private final Queue<Object> events = new ConcurrentLinkedQueue<>(); // Event, or the audience itself to mark the end, in the order the room published them
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // true while a fan out of this audience is queued or running
+    private volatile Snapshot latest; // the board a spectator that fell behind gets instead of the events it missed
+
+    public static int getTotal() {
+        return total.get();
+    }
+
+    public boolean isEmpty() {
+        return spectators.isEmpty();
+    }
+
+    public void add(Session client, int sequence, Board board) { // called inside the room, the new spectator starts with the current board
+        Spectator spectator = new Spectator(this, client, Outbox.of(client).isBinary());
+        Outbox.of(client).watch(spectator);
+        update(sequence, board);
+        if (spectators.add(spectator)) {
+            total.incrementAndGet();
+        }
+        spectator.offer(latest.get(spectator.binary));
+    }
+
+    public static void leave(Session client) { // the session closed, called for every session
+        Spectator spectator = Outbox.of(client).stopWatching();
+        if (spectator != null) {
+            spectator.audience.remove(spectator);
+        }
+    }
+
+    private void remove(Spectator spectator) {
+        if (spectators.remove(spectator)) {
+            total.decrementAndGet();
+        }
+    }
+
+    public void update(int sequence, Board board) { // called inside the room after the board changed, copies it since the room keeps changing its own
+        latest = new Snapshot(sequence, board.copy());
+    }
+
+    public void publish(String text, ByteBuffer frame) { // called inside the room, both encodings are shared by every spectator
+        events.add(new Event(text, frame));
+        schedule();
+    }
+
+    public void close(byte error) { // the room is gone, spectators get the same error as the players, 0 = none
+        if (error != 0) {
+            publish("error:" + Protocol.error(error), Protocol.frame(Protocol.ERROR, error));
+        }
+        events.add(this); // marks the end, see fanOut
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            fanout.execute(this::fanOut);
+        }
+    }
+
+    private void fanOut() { // runs on a fanout thread, only one per audience at a time so the events keep their order
+        for (Object event = events.poll(); event != null; event = events.poll()) {
+            if (event == this) {
+                for (Spectator spectator : spectators) {
+                    Outbox.of(spectator.session).stopWatching(spectator);
+                    remove(spectator);
+                }
+                continue;
+            }
+            Event shared = (Event) event;
+            for (Spectator spectator : spectators) {
+                spectator.offer(spectator.binary ? shared.frame : shared.text);
+            }
+        }
+        scheduled.set(false);
+        if (!events.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private static final class Event {
+        private final String text;
+        private final ByteBuffer frame;
+
+        private Event(String text, ByteBuffer frame) {
+            this.text = text;
+            this.frame = frame;
+        }
+    }
+
+    private static final class Snapshot { // the board after a change, each encoding is only built once a spectator needs it
+        private final int sequence;
+        private final Board board;
+        private volatile String text;
+        private volatile ByteBuffer frame;
+
+        private Snapshot(int sequence, Board board) {
+            this.sequence = sequence;
+            this.board = board;
+        }
+
+        private Object get(boolean binary) { // two threads may build the same encoding at once, both results are equal
+            if (binary) {
+                if (frame == null) {
+                    frame = Protocol.boardFrame(sequence, Protocol.SYNC, board);
+                }
+                return frame;
+            }
+            if (text == null) {
+                text = "sync:" + sequence + ":" + board;
+            }
+            return text;
+        }
+    }
+
+    static final class Spectator { // at most one message in flight, while it is the later events are dropped and replaced by the latest board
+        private final Audience audience;
+        private final Session session;
+        private final boolean binary;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile boolean missed = false; // an event was dropped while a message was in flight
+        private int inFlight; // size of the message in flight, only touched by the thread holding sending
+
+        private Spectator(Audience audience, Session session, boolean binary) {
+            this.audience = audience;
+            this.session = session;
+            this.binary = binary;
+        }
+
+        private void offer(Object message) {
+            if (!sending.compareAndSet(false, true)) {
+                missed = true;
+                if (!sending.compareAndSet(false, true)) { // still in flight, onSent sends the latest board
+                    return;
+                }
+                missed = false;
+                message = audience.latest.get(binary); // the send finished in the meantime, catch up right away
+            }
+            try {
+                if (binary) {
+                    inFlight = ((ByteBuffer) message).remaining();
+                    session.getAsyncRemote().sendBinary(((ByteBuffer) message).duplicate(), this::onSent);
+                } else {
+                    inFlight = Metrics.utf8Length((String) message);
+                    session.getAsyncRemote().sendText((String) message, this::onSent);
+                }
+            } catch (Exception e) { // the session is already closed
+                audience.remove(this);
+            }
+        }
+
+        private void onSent(SendResult result) {
+            if (result.isOK()) {
+                Metrics.metrics.sent(inFlight);
+            } else {
+                Metrics.metrics.sendFailed();
+                audience.remove(this);
+                return;
+            }
+            sending.set(false);
+            if (missed) {
+                missed = false;
+                offer(audience.latest.get(binary));
+            }
+        }
+    }
+}
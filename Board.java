@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class Board { // positions of the 16 pieces of a room, stored as primitives so moves and capture checks don't allocate
+    public static final int PIECES = 16; // 4 pieces for each of the 4 colors, numbered 1 to 16
+    public static final int FIELDS = 72; // 1-16 home fields, 17-32 finish fields, 33-72 the path around the board
+
+    private final byte[] position = new byte[PIECES]; // field of each piece, index = piece - 1
+    private final byte[] occupant = new byte[FIELDS + 1]; // piece standing on each field, 0 = empty (index 0 is unused)
+
+    public Board() {
+        for (int piece = 1; piece <= PIECES; piece++) {
+            position[piece - 1] = (byte) piece; // every piece starts on the home field with its own number
+            occupant[piece] = (byte) piece;
+        }
+    }
+
+    public Board copy() {
+        Board copy = new Board();
+        System.arraycopy(position, 0, copy.position, 0, PIECES);
+        System.arraycopy(occupant, 0, copy.occupant, 0, FIELDS + 1);
+        return copy;
+    }
+
+    public int getPosition(int piece) {
+        return position[piece - 1];
+    }
+
+    public int getOccupant(int field) { // returns the piece on the field, or 0 if the field is empty
+        return occupant[field];
+    }
+
+    public int move(int piece, int field) { // moves a piece, throwing out a piece already standing on the target field. Returns the thrown out piece or 0
+        int captured = occupant[field];
+        if (captured == piece) {
+            captured = 0;
+        }
+        if (captured != 0) {
+            int home = freeHomeField(captured);
+            if (home == 0) { // a piece on the path leaves a home field of its color free, so the table is broken
+                throw new IllegalStateException("No free home field for piece " + captured);
+            }
+            place(captured, home);
+        }
+        place(piece, field);
+        return captured;
+    }
+
+    public void place(int piece, int field) { // puts a piece on a field without checking if the field is occupied, the caller makes sure it is empty
+        int from = position[piece - 1];
+        if (occupant[from] == piece) {
+            occupant[from] = 0;
+        }
+        position[piece - 1] = (byte) field;
+        occupant[field] = (byte) piece;
+    }
+
+    public int freeHomeField(int piece) { // returns the first empty home field of the color of the piece, or 0 if all are taken
+        int first = ((piece - 1) / 4) * 4 + 1; // home fields have the same numbers as the pieces of their color
+        for (int field = first; field < first + 4; field++) {
+            if (occupant[field] == 0) {
+                return field;
+            }
+        }
+        return 0;
+    }
+
+    public void appendTo(StringBuilder out) { // writes the board as comma separated "piece:field" pairs, ordered by piece
+        for (int piece = 1; piece <= PIECES; piece++) {
+            if (piece > 1) {
+                out.append(',');
+            }
+            out.append(piece).append(':').append(position[piece - 1]);
+        }
+    }
+
+    public void writeTo(ByteBuffer out) { // writes the field of each piece as one byte, ordered by piece
+        out.put(position);
+    }
+
+    public void readFrom(ByteBuffer in) { // reads the field of each piece as written by writeTo
+        Arrays.fill(occupant, (byte) 0);
+        in.get(position);
+        for (int piece = 1; piece <= PIECES; piece++) {
+            occupant[position[piece - 1]] = (byte) piece;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(PIECES * 6);
+        appendTo(out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,208 @@
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.tyrus.server.Server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+public final class Cluster { // clustered mode: the first two characters of a room ID are its shard, a consistent hash ring maps every shard to the node that owns its rooms
+    public static final int SHARDS = 256; // a room ID starts with its shard as two hex digits
+    private static final int POINTS = 128; // places of each node on the ring, the more there are the more evenly the shards are spread
+    private static final String SECRET = System.getProperty("maedn.cluster.secret", ""); // nodes only accept membership changes and rooms with this secret, required in clustered mode
+    private static final String SECRET_HEADER = "X-Maedn-Secret";
+    private static final String FORWARDED_HEADER = "X-Maedn-Forwarded"; // set on a membership change one node passes on to the others, so it is not passed on again
+    private static final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    private static volatile String self; // host:port this node is reached at by clients and the other nodes, null = not clustered
+    private static volatile List<String> nodes = Collections.emptyList();
+    private static volatile String[] owners = new String[SHARDS]; // node of each shard
+    private static volatile int[] localShards = new int[0]; // shards owned by this node, new rooms get one of them
+
+    private Cluster() {
+    }
+
+    public static boolean isEnabled() {
+        return self != null;
+    }
+
+    public static synchronized void start(String node, List<String> members) { // joins the cluster, rooms of the journal that belong to another node are handed off to it
+        if (SECRET.isEmpty()) { // anyone who reaches the port could take over the rooms or change the members
+            throw new IllegalStateException("maedn.cluster.secret must be set in clustered mode");
+        }
+        if (!members.contains(node)) { // the node would own no shard and send its clients and rooms to itself
+            throw new IllegalStateException("maedn.cluster.self " + node + " is not in maedn.cluster.nodes " + members);
+        }
+        self = node;
+        setNodes(members);
+    }
+
+    public static List<String> parse(String members) { // "host:port,host:port"
+        List<String> parsed = new ArrayList<>();
+        for (String member : members.split(",")) {
+            if (!member.trim().isEmpty()) {
+                parsed.add(member.trim());
+            }
+        }
+        return parsed;
+    }
+
+    private static synchronized void setNodes(List<String> members) { // rebuilds the ring, only the shards next to the places of the added or removed nodes change their owner
+        TreeMap<Integer, String> ring = new TreeMap<>();
+        for (String member : members) {
+            for (int i = 0; i < POINTS; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+        String[] assigned = new String[SHARDS];
+        List<Integer> local = new ArrayList<>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            Map.Entry<Integer, String> owner = ring.ceilingEntry(hash("shard#" + shard));
+            assigned[shard] = owner != null ? owner.getValue() : ring.isEmpty() ? self : ring.firstEntry().getValue(); // the ring wraps around
+            if (assigned[shard].equals(self)) {
+                local.add(shard);
+            }
+        }
+        nodes = Collections.unmodifiableList(new ArrayList<>(members));
+        owners = assigned;
+        localShards = local.stream().mapToInt(Integer::intValue).toArray();
+        System.out.println("Cluster of " + members.size() + " nodes, " + local.size() + " of " + SHARDS + " shards on " + self);
+        GameServer.handOffRooms();
+    }
+
+    public static String newRoomId() { // a random ID in a shard of this node, any shard when not clustered
+        int[] local = localShards;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int shard = local.length > 0 ? local[random.nextInt(local.length)] : random.nextInt(SHARDS);
+        return String.format("%02x%06x", shard, random.nextInt(1 << 24));
+    }
+
+    public static String ownerOf(String roomId) { // the node a room belongs to, null if that is this node or the ID names no shard
+        if (self == null || roomId.length() < 2) {
+            return null;
+        }
+        int high = Character.digit(roomId.charAt(0), 16);
+        int low = Character.digit(roomId.charAt(1), 16);
+        if (high < 0 || low < 0) {
+            return null;
+        }
+        String owner = owners[high * 16 + low];
+        return owner.equals(self) ? null : owner;
+    }
+
+    public static String elsewhere() { // a node that starts new games while this one owns no shard (it was removed from the cluster), null if this one can
+        if (self == null || localShards.length > 0) {
+            return null;
+        }
+        String[] assigned = owners;
+        return assigned[ThreadLocalRandom.current().nextInt(SHARDS)];
+    }
+
+    static CompletableFuture<Boolean> transfer(String node, String roomId, ByteBuffer state) { // sends a room to its new owner, state is the snapshot record of a started game or empty for a lobby
+        byte[] body = new byte[state.remaining()];
+        state.get(body);
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + node + "/cluster?room=" + roomId))
+                .timeout(Duration.ofSeconds(10))
+                .header(SECRET_HEADER, SECRET)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return http.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .thenApply(response -> response.statusCode() / 100 == 2)
+                .exceptionally(e -> false);
+    }
+
+    static void register(Server server) { // adds /cluster to the Grizzly server Tyrus runs on: GET shows the ring, PUT changes the members, POST ?room= takes over a room
+        if (self == null) {
+            return;
+        }
+        try {
+            Metrics.httpServer(server).getServerConfiguration().addHttpHandler(new HttpHandler() {
+                @Override
+                public void service(Request request, Response response) throws Exception {
+                    response.setContentType("text/plain");
+                    if (request.getMethod().getMethodString().equals("GET")) {
+                        response.getWriter().write(describe());
+                        return;
+                    }
+                    String secret = Objects.toString(request.getHeader(SECRET_HEADER), "");
+                    if (!MessageDigest.isEqual(SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8))) { // takes as long for a wrong prefix as for a wrong end
+                        response.setStatus(403);
+                        return;
+                    }
+                    byte[] body = request.getInputStream().readNBytes(Math.max(request.getContentLength(), 0)); // reading to the end would wait for the client to close
+                    String room = request.getParameter("room");
+                    if (request.getMethod().getMethodString().equals("POST") && room != null) {
+                        response.setStatus(GameServer.adopt(room, ByteBuffer.wrap(body)) ? 204 : 409);
+                    } else if (request.getMethod().getMethodString().equals("PUT")) {
+                        List<String> members = parse(new String(body, StandardCharsets.UTF_8));
+                        if (members.isEmpty()) {
+                            response.setStatus(400);
+                            return;
+                        }
+                        if (request.getHeader(FORWARDED_HEADER) == null) {
+                            forward(members);
+                        }
+                        setNodes(members);
+                        response.getWriter().write(describe());
+                    } else {
+                        response.setStatus(405);
+                    }
+                }
+            }, "/cluster");
+        } catch (Exception e) {
+            System.out.println("Cluster endpoint not available, members can't change at runtime: " + e);
+        }
+    }
+
+    private static void forward(List<String> members) { // passes a membership change on to the old and the new members, each of them hands off its own rooms
+        Set<String> targets = new LinkedHashSet<>(nodes);
+        targets.addAll(members);
+        targets.remove(self);
+        String body = String.join(",", members);
+        for (String node : targets) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + node + "/cluster"))
+                    .timeout(Duration.ofSeconds(10))
+                    .header(SECRET_HEADER, SECRET)
+                    .header(FORWARDED_HEADER, self)
+                    .PUT(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            http.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, e) -> {
+                if (e != null || response.statusCode() / 100 != 2) {
+                    System.out.println("Membership change not passed on to " + node + ": " + (e != null ? e : response.statusCode()));
+                }
+            });
+        }
+    }
+
+    private static String describe() {
+        String[] assigned = owners;
+        Map<String, Integer> shards = new TreeMap<>();
+        for (String owner : assigned) {
+            shards.merge(owner, 1, Integer::sum);
+        }
+        StringBuilder text = new StringBuilder();
+        text.append("self ").append(self).append('\n');
+        for (String node : nodes) {
+            text.append("node ").append(node).append(' ').append(shards.getOrDefault(node, 0)).append(" shards\n");
+        }
+        return text.toString();
+    }
+
+    private static int hash(String key) { // the first four bytes of the MD5, spreads similar keys evenly over the ring
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getInt();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+
+public final class Config { // settings of the server, all of them are system properties named maedn.*, e.g. maedn.port, see maedn.properties
+    private Config() {
+    }
+
+    public static void load() throws IOException { // fills in the settings not given with -D: an environment variable MAEDN_X_Y sets maedn.x.y, then the config file
+        for (Map.Entry<String, String> variable : System.getenv().entrySet()) {
+            if (variable.getKey().startsWith("MAEDN_") && !variable.getKey().equals("MAEDN_CONFIG")) {
+                String key = variable.getKey().toLowerCase().replace('_', '.');
+                if (System.getProperty(key) == null) {
+                    System.setProperty(key, variable.getValue());
+                }
+            }
+        }
+
+        String file = System.getProperty("maedn.config", System.getenv().getOrDefault("MAEDN_CONFIG", "maedn.properties"));
+        Path path = Paths.get(file);
+        if (!Files.exists(path)) { // the file is optional
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (System.getProperty(key) == null) {
+                System.setProperty(key, properties.getProperty(key).trim());
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class DebugLog { // optional log of connections and messages, written by a background thread so logging never blocks a message
+    private static final int SAMPLE = Integer.getInteger("maedn.log.sample", 0); // 0 = off, 1 = log everything, n = log every nth entry
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(4096); // entries are dropped while the queue is full
+    private static final AtomicLong counter = new AtomicLong();
+
+    static {
+        if (SAMPLE > 0) {
+            Thread writer = new Thread(() -> {
+                try {
+                    while (true) {
+                        System.out.println(queue.take());
+                    }
+                } catch (InterruptedException e) {
+                    // exits with the JVM
+                }
+            }, "debug-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private DebugLog() {
+    }
+
+    public static boolean isEnabled() { // check before building an expensive entry
+        return SAMPLE > 0;
+    }
+
+    public static void log(String entry) {
+        if (SAMPLE > 0 && counter.incrementAndGet() % SAMPLE == 0) {
+            queue.offer(entry);
+        }
+    }
+}
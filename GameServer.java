@@ -1,337 +1,383 @@
 import javax.websocket.*;
 import javax.websocket.server.ServerEndpoint;
+import javax.websocket.server.ServerEndpointConfig;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.glassfish.grizzly.http.server.AddOn;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.glassfish.tyrus.container.grizzly.server.GrizzlyServerContainer;
+import org.glassfish.tyrus.core.TyrusWebSocketEngine;
+import org.glassfish.tyrus.core.monitoring.ApplicationEventListener;
+import org.glassfish.tyrus.core.monitoring.EndpointEventListener;
 import org.glassfish.tyrus.server.Server;
 
-@ServerEndpoint("/room")
+@ServerEndpoint(value = "/room", configurator = GameServer.Negotiation.class)
 public class GameServer {
-    private static Map<String, Set<Session>> games = new HashMap<>(); // list of players in a room
-    private static Map<String, Integer> playerReady = new HashMap<>(); // amount of players that a ready in a room, 4 = start the game
-    private static Map<String, Map<Integer, Integer>> gameState = new HashMap<>(); // game state for each room
-    private static Map<String, Map<String, Integer>> gameData = new HashMap<>(); // game data for each room (e.g. current player, available moves, etc.)
-    private static Map<String, Map<Integer, Session>> playerColor = new HashMap<>(); // player color for each room
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>(); // all open rooms by their ID
+    private static final Map<Session, Room> sessionRoom = new ConcurrentHashMap<>(); // room of each session, so lookups don't have to scan every room
+    private static volatile boolean draining = false; // set on shutdown, no new games are started while the running ones finish
+
+    private static final int PATH_LENGTH = 48; // 4 home fields + 40 path fields + 4 finish fields
+    private static final int[][] colorPaths = new int[4][]; // path of each color (index = color - 1), computed once since they never change
+    private static final int[][] pathIndex = new int[4][Board.FIELDS + 1]; // index of each field in the path of each color, -1 = not on the path
+
+    static {
+        for (int color = 1; color <= 4; color++) {
+            colorPaths[color - 1] = buildColorPath(color);
+            Arrays.fill(pathIndex[color - 1], -1);
+            for (int i = 0; i < PATH_LENGTH; i++) {
+                pathIndex[color - 1][colorPaths[color - 1][i]] = i;
+            }
+        }
+    }
 
     @OnOpen // runs when a new client connects to the server
     public void onOpen(Session client) {
-        System.out.println("Client connected: " + client.getId());
+        Metrics.metrics.opened();
+        DebugLog.log("Client connected: " + client.getId());
+        Outbox.of(client); // create the outbox before any message can be sent from another thread
+        Heartbeat.of(client).start();
     }
 
-    @OnMessage // runs when the server receives a message from a client
+    @OnMessage // runs when the server receives a text message from a client
     public void onMessage(String message, Session client) {
         try {
-            System.out.println("Received message from client: " + message);
-            String[] parts = message.split(":", 2); // split the message into two parts: the command and the data
-            String command = parts[0];
-            String data = (parts.length > 1) ? parts[1] : "";
+            Metrics.metrics.received(Metrics.utf8Length(message));
+            Heartbeat.of(client).received();
+            if (DebugLog.isEnabled()) {
+                DebugLog.log("Received message from client: " + message);
+            }
+            int separator = message.indexOf(':'); // split the message into two parts: the command and the data
+            String command = separator < 0 ? message : message.substring(0, separator);
+            String data = separator < 0 ? "" : message.substring(separator + 1);
 
             switch (command) {
                 case "create": // create a new room
-                    String roomId = UUID.randomUUID().toString().substring(0, 6); // generate a random room ID
-                    games.put(roomId, new HashSet<>()); // create a new room
-                    playerReady.put(roomId, 0); // set the amount of players that are ready in that room to 0
-                    Map<Integer, Integer> startState = new HashMap<>();
-                    for (int i = 1; i < 17; i++) {
-                        startState.put(i ,i); // set the starting position of each piece
-                    }
-                    gameState.put(roomId, startState); // set the game state for the room
-                    client.getBasicRemote().sendText("created:" + roomId); // send the room ID to the client
-                    games.get(roomId).add(client); // add the client to the room
+                    create(client);
                     break;
                 case "join": // join an existing room
-                     if (data != null && games.containsKey(data)) { // check if the room exists
-                         if (games.get(data).size() == 4) { // check if the room is full, if yes send an error
-                             client.getBasicRemote().sendText("error:roomfull");
-                             return;
-                         }
-                        games.get(data).add(client); // add the client to the room
-                        client.getBasicRemote().sendText("joined:" + data); // send the room ID to the client
-                     } else {
-                        client.getBasicRemote().sendText("error:roomnotfound"); // send an error if the room does not exist
-                     }
-                     break;
-                case "ready": // set the player as ready (or not ready)
-                    String currentRoom = null;
-                    for (String room : games.keySet()) {
-                        if (games.get(room).contains(client)) {
-                            currentRoom = room;
-                            if (data.equals("true")) { // check if the player wants to be ready or not ready and update the amount of players that are ready in the room accordingly
-                                playerReady.put(room, playerReady.get(room) + 1);
-                            } else {
-                                playerReady.put(room, playerReady.get(room) - 1);
-                            }
-                        }
-                    }
-                    if (playerReady.get(currentRoom) == 4) { // start the game if all players are ready
-                        gameData.put(currentRoom, new HashMap<>()); // create a new game data object for the room
-                        gameData.get(currentRoom).put("currentPlayer", 1); // initialize variables for the game data
-                        gameData.get(currentRoom).put("availableMoves", 0);
-                        playerColor.put(currentRoom, new HashMap<>()); // create a new player color object for the room
-                        int playerNumber = 1;
-                        for (Session player : games.get(currentRoom)) { // assign a color to each player
-                            player.getBasicRemote().sendText("start:" + playerNumber);
-                            playerColor.get(currentRoom).put(playerNumber, player); // Assign a color to a player
-                            playerNumber++;
-                        }
-                    }
+                    join(data, client);
                     break;
-                case "visualroll": // send the visual roll to all players in the room (adds no rolls to the player)
-                    for (Session player : games.get(getRoomIdFromSession(client))) {
-                        if (player != client) {
-                            player.getBasicRemote().sendText("visualroll:" + data);
-                        }
-                    }
+                case "reconnect": // take back the seat of a dropped connection with the token sent at the start of the game
+                    reconnect(data, client);
                     break;
-                case "nextplayer": // switch to the next player
-                    int currentPlayer = gameData.get(getRoomIdFromSession(client)).get("currentPlayer");
-                    if (playerColor.get(getRoomIdFromSession(client)).get(currentPlayer) == client) {
-                        currentPlayer++;
-                        if (currentPlayer > 4) {
-                            currentPlayer = 1;
-                        }
-                        gameData.get(getRoomIdFromSession(client)).put("currentPlayer", currentPlayer);
-                        for (Session player : games.get(getRoomIdFromSession(client))) {
-                            if (player != client) {
-                                player.getBasicRemote().sendText("nextplayer:" + currentPlayer);
-                            }
-                        }
-                    }
+                case "quickjoin": // play with whoever else is waiting, the game starts as soon as four players are found
+                    quickJoin(client);
                     break;
-                case "pieceoutroll": // send the piece out roll to all players in the room (acts like roll but displays a different message)
-                    for (Session player : games.get(getRoomIdFromSession(client))) {
-                        if (player != client) {
-                            player.getBasicRemote().sendText("pieceoutroll:" + data);
-                        }
-                    }
+                case "spectate": // watch a room without taking part
+                    spectate(data, client);
                     break;
-                case "roll": // send the roll to all players in the room (will add moves)
-                    gameData.get(getRoomIdFromSession(client)).put("availableMoves", Integer.parseInt(data)); // set the available moves for the current player
-                    for (Session player : games.get(getRoomIdFromSession(client))) {
-                        if (player != client) {
-                            player.getBasicRemote().sendText("roll:" + data);
-                        }
+                case "protocol": // choose how updates are sent to this client: "full" (default) or "delta" board updates, optionally as "binary" frames, e.g. "binary,delta"
+                    Outbox outbox = Outbox.of(client);
+                    outbox.setDelta(data.contains("delta"));
+                    outbox.setBinary(data.contains("binary"));
+                    outbox.send("protocol:" + (outbox.isBinary() ? "binary," : "") + (outbox.isDelta() ? "delta" : "full"));
+                    break;
+                default: // everything else is a command inside the room of the client
+                    byte opcode = Protocol.opcode(command);
+                    if (opcode == 0) {
+                        return;
                     }
+                    handle(opcode, Protocol.parseValue(opcode, data), client);
+                    break;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @OnMessage // runs when the server receives a binary frame from a client, see Protocol for the layout
+    public void onMessage(ByteBuffer message, Session client) {
+        try {
+            Metrics.metrics.received(message.remaining());
+            Heartbeat.of(client).received();
+            Outbox.of(client).setBinary(true); // a client that sends frames gets frames back
+            byte opcode = message.get();
+            switch (opcode) {
+                case Protocol.CREATE:
+                    create(client);
                     break;
-                case "move": // move a piece
-                    roomId = getRoomIdFromSession(client);
-                    Map<Integer, Integer> state = gameState.get(roomId);
-                    int availableMoves = gameData.get(roomId).get("availableMoves");
-                    int pieceToMove = Integer.parseInt(data);
-                    currentPlayer = gameData.get(roomId).get("currentPlayer");
-
-                    // Get the color path of the current player
-                    List<Integer> colorPath = getColorPath(currentPlayer);
-
-                    // Find the index of the piece to move in the color path
-                    int currentIndex = colorPath.indexOf(state.get(pieceToMove));
-
-                    // Calculate the target index
-                    int targetIndex = currentIndex + availableMoves;
-                    int targetField = colorPath.get(targetIndex);
-                    for (Map.Entry<Integer, Integer> entry : state.entrySet()) {
-                        // check if the target field is occupied by another piece, if yes throw it out
-                        if (entry.getValue() == targetField) {
-                            // Move the piece back to its starting field
-                            int startingField;
-                            boolean fieldOccupied = true;
-                            for (int i = 0; i < 4; i++) {
-                                // Find the starting field of the piece
-                                if (entry.getKey() >= 1 && entry.getKey() <= 4) {
-                                    startingField = 1 + i; // Field between 1 and 4
-                                } else if (entry.getKey() >= 5 && entry.getKey() <= 8) {
-                                    startingField = 5 + i; // Field between 5 and 8
-                                } else if (entry.getKey() >= 9 && entry.getKey() <= 12) {
-                                    startingField = 9 + i; // Field between 9 and 12
-                                } else {
-                                    startingField = 13 + i; // Field between 13 and 16
-                                }
-
-                                fieldOccupied = false;
-                                // check each starting field for the color if it's occupied or not
-                                for (Map.Entry<Integer, Integer> checkEntry : state.entrySet()) {
-                                    if (checkEntry.getValue() == startingField) {
-                                        fieldOccupied = true;
-                                        break;
-                                    }
-                                }
-
-                                if (!fieldOccupied) {
-                                    state.put(entry.getKey(), startingField);
-                                    break;
-                                }
-                            }
-
-                            if (fieldOccupied) {
-                                //do nothing -> no action needed because the field is occupied, keep looking for an empty field
-                            }
-
-                            break;
-                        }
+                case Protocol.JOIN:
+                    join(Protocol.readId(message), client);
+                    break;
+                case Protocol.RECONNECT:
+                    reconnect(Protocol.readId(message), client);
+                    break;
+                case Protocol.QUICKJOIN:
+                    quickJoin(client);
+                    break;
+                case Protocol.SPECTATE:
+                    spectate(Protocol.readId(message), client);
+                    break;
+                default: // everything else is a command inside the room of the client
+                    if (opcode < Protocol.CREATE || opcode > Protocol.SPECTATE) { // not a command, like an unknown text command
+                        return;
                     }
+                    handle(opcode, message.hasRemaining() ? message.get() : 0, client);
+                    break;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-                    // Perform the move
-                    state.put(pieceToMove, targetField);
-                    gameState.put(roomId, state);
+    @OnMessage // runs when a client answers a ping of its Heartbeat
+    public void onPong(PongMessage pong, Session client) {
+        Heartbeat.of(client).pong();
+    }
 
-                    // Convert the game state to a string
-                    StringBuilder gameStateString = new StringBuilder();
-                    for (Map.Entry<Integer, Integer> entry : state.entrySet()) {
-                        gameStateString.append(entry.getKey()).append(":").append(entry.getValue()).append(",");
-                    }
+    private void create(Session client) { // create a new room
+        if (draining) {
+            Outbox.of(client).sendError(Protocol.SHUTTING_DOWN);
+            return;
+        }
+        String node = Cluster.elsewhere();
+        if (node != null) { // this node is leaving the cluster
+            Outbox.of(client).sendId(Protocol.REDIRECT, node);
+            return;
+        }
+        if (sessionRoom.containsKey(client)) { // a player in a room has to leave it first
+            return;
+        }
+        Room room = newRoom();
+        if (!bindSession(client, room)) { // a join of the client got in first
+            removeRoom(room);
+            return;
+        }
+        execute(room, Protocol.CREATE, () -> room.create(client));
+    }
 
-                    // Remove the trailing comma since the last piece does not need a comma because no new pieces will be added
-                    if (gameStateString.length() > 0) {
-                        gameStateString.setLength(gameStateString.length() - 1);
-                    }
+    private void join(String roomId, Session client) { // join an existing room
+        Room room = rooms.get(roomId);
+        if (draining) {
+            Outbox.of(client).sendError(Protocol.SHUTTING_DOWN);
+        } else if (room != null && !sessionRoom.containsKey(client)) { // check if the room exists, a player in a room has to leave it first
+            execute(room, Protocol.JOIN, () -> room.join(client));
+        } else if (room != null || !redirect(roomId, client)) {
+            Outbox.of(client).sendError(Protocol.ROOM_NOT_FOUND); // send an error if the room does not exist
+        }
+    }
 
-                    // Broadcast the game state to all players in the room
-                    for (Session player : games.get(roomId)) {
-                        if (player != client) {
-                            player.getBasicRemote().sendText("move:" + gameStateString.toString());
-                        }
-                    }
-                    break;
-                case "movewin": // like move but finishes the game and does not check for occupied fields -> already checked client side
-                    roomId = getRoomIdFromSession(client);
-                    Map<Integer, Integer> state2 = gameState.get(roomId);
-                    int availableMoves2 = gameData.get(roomId).get("availableMoves");
-                    int pieceToMove2 = Integer.parseInt(data);
-                    currentPlayer = gameData.get(roomId).get("currentPlayer");
-
-                    // Get the color path of the current player
-                    List<Integer> colorPath2 = getColorPath(currentPlayer);
-
-                    // Find the index of the piece to move in the color path
-                    int currentIndex2 = colorPath2.indexOf(state2.get(pieceToMove2));
-
-                    // Calculate the target index
-                    int targetIndex2 = currentIndex2 + availableMoves2;
-                    int targetField2 = colorPath2.get(targetIndex2);
-                    state2.put(pieceToMove2, targetField2);
-                    gameState.put(roomId, state2);
-                    StringBuilder gameStateString2 = new StringBuilder();
-                    for (Map.Entry<Integer, Integer> entry : state2.entrySet()) {
-                        gameStateString2.append(entry.getKey()).append(":").append(entry.getValue()).append(",");
-                    }
+    private void spectate(String roomId, Session client) {
+        Room room = rooms.get(roomId);
+        if (room != null && !sessionRoom.containsKey(client)) { // players can't watch
+            Audience.leave(client); // stops watching the previous room
+            execute(room, Protocol.SPECTATE, () -> room.spectate(client));
+        } else if (room != null || !redirect(roomId, client)) {
+            Outbox.of(client).sendError(Protocol.ROOM_NOT_FOUND);
+        }
+    }
 
-                    // Remove the trailing comma
-                    if (gameStateString2.length() > 0) {
-                        gameStateString2.setLength(gameStateString2.length() - 1);
-                    }
+    private void quickJoin(Session client) {
+        String node = Cluster.elsewhere();
+        if (draining) {
+            Outbox.of(client).sendError(Protocol.SHUTTING_DOWN);
+        } else if (node != null) { // this node is leaving the cluster
+            Outbox.of(client).sendId(Protocol.REDIRECT, node);
+        } else if (!sessionRoom.containsKey(client)) { // a player in a room has to leave it first
+            Matchmaker.quickJoin(client);
+        }
+    }
 
-                    // Broadcast the game state to all players in the room
-                    for (Session player : games.get(roomId)) {
-                        if (player != client) {
-                            player.getBasicRemote().sendText("movewin:" + gameStateString2.toString());
-                        }
-                    }
-                    break;
-                case "movepieceout": // move a piece out of the home field -> does not calculate the target field since moving out of the home always goes to the first field (which is the 5th one in the color path -> index 4)
-                    roomId = getRoomIdFromSession(client);
-                    state = gameState.get(roomId);
-                    int pieceToMoveOut = Integer.parseInt(data);
-                    currentPlayer = gameData.get(roomId).get("currentPlayer");
-                    colorPath = getColorPath(currentPlayer);
-                    targetField = colorPath.get(4); // set target field to the first field (which isn't home fields) of the color path
-                    // throws out other pieces if the target field is occupied
-                    for (Map.Entry<Integer, Integer> entry : state.entrySet()) {
-                        if (entry.getValue() == targetField) {
-                            // Move the piece back to its starting field
-                            int startingField;
-                            boolean fieldOccupied = true;
-                            for (int i = 0; i < 4; i++) {
-                                if (entry.getKey() >= 1 && entry.getKey() <= 4) {
-                                    startingField = 1 + i; // Field between 1 and 4
-                                } else if (entry.getKey() >= 5 && entry.getKey() <= 8) {
-                                    startingField = 5 + i; // Field between 5 and 8
-                                } else if (entry.getKey() >= 9 && entry.getKey() <= 12) {
-                                    startingField = 9 + i; // Field between 9 and 12
-                                } else {
-                                    startingField = 13 + i; // Field between 13 and 16
-                                }
-
-                                fieldOccupied = false;
-                                for (Map.Entry<Integer, Integer> checkEntry : state.entrySet()) {
-                                    if (checkEntry.getValue() == startingField) {
-                                        fieldOccupied = true;
-                                        break;
-                                    }
-                                }
-
-                                if (!fieldOccupied) {
-                                    state.put(entry.getKey(), startingField);
-                                    break;
-                                }
-                            }
-
-                            if (fieldOccupied) {
-                                //do nothing -> impossible to reach
-                            }
-
-                            break;
-                        }
-                    }
+    private static boolean redirect(String roomId, Session client) { // sends the client to the node that owns the room, false if that is this node
+        String owner = Cluster.ownerOf(roomId);
+        if (owner == null) {
+            return false;
+        }
+        Outbox.of(client).sendId(Protocol.REDIRECT, owner);
+        return true;
+    }
 
-                    // Perform the move
-                    state.put(pieceToMoveOut, targetField);
-                    gameState.put(roomId, state);
+    static Room newRoom() { // creates and registers a room with a new random ID in a shard of this node
+        while (true) {
+            String roomId = Cluster.newRoomId();
+            Room room = new Room(roomId);
+            if (rooms.putIfAbsent(roomId, room) == null) {
+                return room;
+            }
+        }
+    }
 
-                    // Convert the game state to a string
-                    StringBuilder gameStateString3 = new StringBuilder();
-                    for (Map.Entry<Integer, Integer> entry : state.entrySet()) {
-                        gameStateString3.append(entry.getKey()).append(":").append(entry.getValue()).append(",");
-                    }
+    private void reconnect(String token, Session client) {
+        int separator = token.indexOf('.'); // tokens start with the room ID
+        Room room = separator < 0 ? null : rooms.get(token.substring(0, separator));
+        if (room != null) {
+            execute(room, Protocol.RECONNECT, () -> room.reconnect(client, token));
+        } else if (separator < 0 || !redirect(token.substring(0, separator), client)) {
+            Outbox.of(client).sendError(Protocol.INVALID_TOKEN);
+        }
+    }
 
-                    // Remove the trailing comma
-                    if (gameStateString3.length() > 0) {
-                        gameStateString3.setLength(gameStateString3.length() - 1);
-                    }
+    private void handle(byte opcode, int value, Session client) { // run a command inside the room of the client
+        Room room = sessionRoom.get(client);
+        if (room != null) {
+            execute(room, opcode, () -> room.handle(opcode, value, client));
+        }
+    }
 
-                    // Broadcast the game state to all players in the room
-                    for (Session player : games.get(roomId)) {
-                        if (player != client) {
-                            player.getBasicRemote().sendText("movepieceout:" + gameStateString3.toString());
-                        }
-                    }
-                    break;
+    private static void execute(Room room, byte opcode, Room.Command command) { // runs a command in the room and records the time from its arrival until it is done
+        long start = System.nanoTime();
+        room.execute(() -> {
+            try {
+                command.run();
+            } finally {
+                Metrics.metrics.record(opcode, System.nanoTime() - start);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        });
     }
 
     @OnClose // runs when a client disconnects from the server
     public void onClose(Session client) {
-        System.out.println("Client disconnected: " + client.getId());
-        for (String room : games.keySet()) {
-            if (games.get(room).contains(client)) { // terminates the game if a player disconnects since the game is not playable anymore without all players
-                for (Session player : games.get(room)) {
-                    try {
-                        player.getBasicRemote().sendText("error:playerdisconnected");
-                    } catch (Exception e) {
-                        if (!(e instanceof IllegalStateException))
-                            e.printStackTrace();
-                    }
-                }
-                games.remove(room); // remove all data related to the room
-                playerReady.remove(room);
-                gameState.remove(room);
-                gameData.remove(room);
-                playerColor.remove(room);
+        release(client);
+    }
+
+    static void evict(Session client, String reason) { // disconnects a session the server gave up on, cleans up right away in case the client never completes the close
+        if (release(client)) {
+            Metrics.metrics.evicted();
+            try {
+                client.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, reason));
+            } catch (Exception e) { // the connection is already gone
+                DebugLog.log("Closing " + client.getId() + " failed: " + e);
             }
         }
     }
 
+    private static boolean release(Session client) { // removes a session from its room, only the first call for a session does anything
+        if (!Heartbeat.of(client).stop()) {
+            return false;
+        }
+        Metrics.metrics.closed();
+        DebugLog.log("Client disconnected: " + client.getId());
+        Matchmaker.leave(client);
+        Audience.leave(client);
+        Room room = sessionRoom.remove(client);
+        if (room != null) {
+            room.execute(() -> room.disconnect(client));
+        }
+        return true;
+    }
+
     public String getRoomIdFromSession(Session session) { // get the room ID from a session object
-        for (Map.Entry<String, Set<Session>> entry : games.entrySet()) {
-            if (entry.getValue().contains(session)) {
-                return entry.getKey();
+        Room room = sessionRoom.get(session);
+        return room != null ? room.getId() : null; // Return null if the session is not found in any room
+    }
+
+    static boolean bindSession(Session session, Room room) { // remember which room a session belongs to, false if it is in another room already
+        Room bound = sessionRoom.putIfAbsent(session, room);
+        return bound == null || bound == room;
+    }
+
+    static void unbindSession(Session session, Room room) { // forget the room of a session, unless it already moved to another one
+        sessionRoom.remove(session, room);
+    }
+
+    static void openJournal(Path directory) throws IOException { // recovers the rooms in the journal and keeps journaling into it
+        for (Room room : Journal.open(directory)) {
+            rooms.put(room.getId(), room);
+            room.restored();
+        }
+    }
+
+    static boolean adopt(String roomId, ByteBuffer state) { // takes over a room another node handed off, see Room.handOff. state is its snapshot record, empty for a lobby
+        if (draining || roomId.isEmpty() || roomId.indexOf('.') >= 0) {
+            return false;
+        }
+        Room room = new Room(roomId);
+        boolean started = state.hasRemaining();
+        if (started) {
+            if (state.get() != Journal.SNAPSHOT || !Protocol.readId(state).equals(roomId)) {
+                return false;
             }
+            room.readSnapshot(state);
+        }
+        if (rooms.putIfAbsent(roomId, room) != null) {
+            return false;
+        }
+        if (started) {
+            room.execute(() -> {
+                room.snapshot(); // the journal of this node takes over
+                room.restored(); // the players reconnect like after a restart
+            });
+        } else {
+            room.execute(room::awaitStart);
+        }
+        DebugLog.log("Took over room " + roomId);
+        return true;
+    }
+
+    static void handOffRooms() { // moves the rooms whose shard belongs to another node now, see Cluster
+        for (Room room : rooms.values()) {
+            String owner = Cluster.ownerOf(room.getId());
+            if (owner != null) {
+                room.execute(() -> room.handOff(owner));
+            }
+        }
+    }
+
+    static boolean isDraining() {
+        return draining;
+    }
+
+    static int getRoomCount() {
+        return rooms.size();
+    }
+
+    static int[] countRoomsByState() { // amount of rooms in each state, index = Room.LOBBY, Room.PLAYING, Room.AWAY
+        int[] counts = new int[3];
+        for (Room room : rooms.values()) {
+            counts[room.getState()]++;
+        }
+        return counts;
+    }
+
+    static void snapshotRooms() { // every started game writes a snapshot to the journal
+        for (Room room : rooms.values()) {
+            room.execute(room::snapshot);
         }
-        return null; // Return null if the session is not found in any room
     }
 
-    public List<Integer> getColorPath(int color) { //will return the path for the pieces of each color, starting at their first home position, going through the path and ending at their last finish position
-        List<Integer> colorPathIndex = new ArrayList<>();
+    static void removeRoom(Room room) { // remove a closed room from the registry
+        rooms.remove(room.getId(), room);
+    }
+
+    public static List<Integer> getColorPath(int color) { //will return the path for the pieces of each color, starting at their first home position, going through the path and ending at their last finish position
+        List<Integer> colorPathIndex = new ArrayList<>(PATH_LENGTH);
+        if (color < 1 || color > 4) {
+            return colorPathIndex;
+        }
+        for (int field : colorPaths[color - 1]) {
+            colorPathIndex.add(field);
+        }
+        return colorPathIndex;
+    }
+
+    public static int getTargetField(int color, int field, int steps) { // returns the field a piece of the color lands on when moving the steps from the field, 0 if the field is not on the path or the move would go past the last finish field
+        int index = pathIndex[color - 1][field];
+        if (index < 0) {
+            return 0;
+        }
+        int targetIndex = index + steps;
+        if (targetIndex < 0 || targetIndex >= PATH_LENGTH) {
+            return 0;
+        }
+        return colorPaths[color - 1][targetIndex];
+    }
+
+    public static int getStartField(int color) { // the first field of the path after the home fields (index 4), where pieces are moved out to
+        return colorPaths[color - 1][4];
+    }
+
+    private static int[] buildColorPath(int color) { // computes the path of a color once, the result is cached in colorPaths
+        int[] colorPathIndex = new int[PATH_LENGTH];
+        int n = 0;
         int start, end, finishStart, finishEnd, startPath, endPath;
         if (color == 1) {
             start = 1;
@@ -362,39 +408,165 @@ public class GameServer {
             startPath = 63;
             endPath = 62;
         } else {
-            return colorPathIndex;
+            throw new IllegalArgumentException("Unknown color: " + color);
         }
 
         for (int i = start; i <= end; i++) { //add the home positions
-            colorPathIndex.add(i);
+            colorPathIndex[n++] = i;
         }
 
         for (int i = 1; i <= 72-32; i++) { //add the path positions
             int j = startPath + i - 1;
             if (j > 72) {
                 //if the index is bigger than the size of the availablePositions list, add the position at the index - the size of the list + 32 (because the first 32 positions in availablePositions are home and finish positions)
-                colorPathIndex.add((j - 72) + 32);
+                colorPathIndex[n++] = (j - 72) + 32;
             } else {
-                colorPathIndex.add(j);
+                colorPathIndex[n++] = j;
             }
         }
 
         for (int i = finishStart; i <= finishEnd; i++) { //add the finish positions
-            colorPathIndex.add(i);
+            colorPathIndex[n++] = i;
         }
         return colorPathIndex;
     }
 
+    public static class Negotiation extends ServerEndpointConfig.Configurator { // Tyrus only negotiates the extensions of an endpoint configuration, an annotated endpoint has none, so they are picked here
+        private static final PerMessageDeflate deflate = new PerMessageDeflate();
+
+        @Override
+        public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+            if (Boolean.getBoolean("maedn.deflate")) {
+                for (Extension extension : requested) {
+                    if (extension.getName().equals(PerMessageDeflate.NAME)) {
+                        return Collections.singletonList(deflate);
+                    }
+                }
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    private static class Bind implements ApplicationEventListener { // Tyrus always listens on every interface, this replaces its listener with one on maedn.host right before the port is bound
+        private final String host;
+        private volatile Server server;
+
+        private Bind(String host) {
+            this.host = host;
+        }
+
+        @Override
+        public void onApplicationInitialized(String contextPath) { // called by the container after it configured its listener and before it starts it
+            try {
+                HttpServer http = Metrics.httpServer(server);
+                NetworkListener any = http.getListener("grizzly");
+                if (any.getHost().equals(host)) {
+                    return;
+                }
+                NetworkListener bound = new NetworkListener(any.getName(), host, any.getPort());
+                bound.setTransport(any.getTransport()); // with the thread pools of maedn.selectors and maedn.workers
+                bound.getKeepAlive().setIdleTimeoutInSeconds(any.getKeepAlive().getIdleTimeoutInSeconds());
+                for (AddOn addOn : any.getAddOns()) { // the WebSocket add-on of Tyrus
+                    bound.registerAddOn(addOn);
+                }
+                http.removeListener(any.getName());
+                http.addListener(bound);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Can't listen on " + host + " only", e);
+            }
+        }
+
+        @Override
+        public void onApplicationDestroyed() {
+        }
+
+        @Override
+        public EndpointEventListener onEndpointRegistered(String endpointPath, Class<?> endpointClass) {
+            return EndpointEventListener.NO_OP;
+        }
+
+        @Override
+        public void onEndpointUnregistered(String endpointPath) {
+        }
+    }
+
+    static void drain(long seconds) throws InterruptedException { // lets the running games finish for up to the given time, then writes the rest to the journal so they continue after the restart
+        draining = true;
+        Matchmaker.clear(); // nobody waits for a game that would never start
+        for (Room room : rooms.values()) {
+            room.execute(room::closeLobby);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (!rooms.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        CountDownLatch written = new CountDownLatch(rooms.size());
+        for (Room room : rooms.values()) {
+            room.execute(() -> {
+                room.snapshot();
+                written.countDown();
+            });
+        }
+        written.await(5, TimeUnit.SECONDS);
+        System.out.println("Drained, " + rooms.size() + " games continue after the restart");
+    }
+
     public static void main(String[] args) {
-        Server server = new Server("localhost", 8080, "/", null, GameServer.class); // create a new server object using the external library Tyrus
+        Server server;
         try {
+            Config.load(); // maedn.properties and the MAEDN_* environment variables
+            String host = System.getProperty("maedn.host", "0.0.0.0"); // every interface, like before the address could be configured
+            int port = Integer.getInteger("maedn.port", 8080);
+            Map<String, Object> properties = new HashMap<>();
+            int selectors = Integer.getInteger("maedn.selectors", 0);
+            if (selectors > 0) {
+                properties.put(GrizzlyServerContainer.SELECTOR_THREAD_POOL_CONFIG, ThreadPoolConfig.defaultConfig().copy().setCorePoolSize(selectors).setMaxPoolSize(selectors));
+            }
+            int workers = Integer.getInteger("maedn.workers", 0);
+            if (workers > 0) {
+                properties.put(GrizzlyServerContainer.WORKER_THREAD_POOL_CONFIG, ThreadPoolConfig.defaultConfig().copy().setCorePoolSize(workers).setMaxPoolSize(workers));
+            }
+            properties.put(TyrusWebSocketEngine.INCOMING_BUFFER_SIZE, Integer.getInteger("maedn.frame.max", 4 * 1024 * 1024));
+            Bind bind = new Bind(host);
+            properties.put(ApplicationEventListener.APPLICATION_EVENT_LISTENER, bind);
+            server = new Server(host, port, "/", properties, GameServer.class); // create a new server object using the external library Tyrus
+            bind.server = server;
+
+            String journal = System.getProperty("maedn.journal", "journal");
+            if (!journal.isEmpty()) {
+                openJournal(Paths.get(journal)); // bring back the games that were running before the restart
+            }
+            String nodes = System.getProperty("maedn.cluster.nodes", "");
+            if (!nodes.isEmpty()) { // rooms are spread over these nodes, the ones of the journal another node owns now move there
+                Cluster.start(System.getProperty("maedn.cluster.self", (host.equals("0.0.0.0") ? "localhost" : host) + ":" + port), Cluster.parse(nodes));
+            }
             server.start();
-            System.out.println("Server started on ws://localhost:8080/");
-            System.in.read(); // Keep server running until user presses a key
+            Metrics.register(server); // JMX and GET /metrics
+            Cluster.register(server); // GET/PUT/POST /cluster
+            System.out.println("Server started on ws://" + host + ":" + port + "/");
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            server.stop();
+            Journal.close();
+            System.exit(1);
+            return;
+        }
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> { // SIGTERM and SIGINT
+            try {
+                drain(Long.getLong("maedn.drain", 30));
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                server.stop();
+                Journal.close();
+                stopped.countDown();
+            }
+        }, "shutdown"));
+        try {
+            stopped.await(); // Keep server running until the process is told to stop
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -0,0 +1,88 @@
+import javax.websocket.Session;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Heartbeat { // pings a session regularly and evicts it when it stops answering (a client that vanished without closing the connection) or stays idle too long
+    public static final long INTERVAL = Long.getLong("maedn.heartbeat", 30); // seconds between two pings, a session that did not answer the last ping is evicted, 0 = no pings
+    public static final long IDLE_TIMEOUT = Long.getLong("maedn.timeout.idle", 900); // seconds a session may go without sending a message, 0 = no limit
+    private static final long PERIOD = INTERVAL > 0 ? INTERVAL : IDLE_TIMEOUT; // seconds between two checks
+    private static final String KEY = "heartbeat"; // key of the heartbeat in the user properties of a session
+    private static final ByteBuffer PING = ByteBuffer.allocate(0);
+
+    private final Session session;
+    private final AtomicBoolean open = new AtomicBoolean(true); // false once the session was released, see GameServer.release
+    private volatile long lastMessage = System.nanoTime();
+    private volatile boolean answered = true; // true if the client answered the last ping or sent anything since
+    private volatile TimingWheel.Timeout timeout;
+
+    private Heartbeat(Session session) {
+        this.session = session;
+    }
+
+    public static Heartbeat of(Session session) { // returns the heartbeat of a session, creating it if the session has none yet
+        Object heartbeat = session.getUserProperties().get(KEY);
+        if (heartbeat == null) {
+            heartbeat = new Heartbeat(session);
+            session.getUserProperties().put(KEY, heartbeat);
+        }
+        return (Heartbeat) heartbeat;
+    }
+
+    public void start() {
+        if (PERIOD > 0) {
+            timeout = TimingWheel.schedule(this::beat, PERIOD, TimeUnit.SECONDS);
+        }
+    }
+
+    public void received() { // the client sent a message
+        lastMessage = System.nanoTime();
+        answered = true;
+    }
+
+    public void pong() { // the client answered a ping, this does not count as activity for the idle timeout
+        answered = true;
+    }
+
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    public boolean stop() { // returns true only for the first call, so the session is cleaned up once
+        if (!open.compareAndSet(true, false)) {
+            return false;
+        }
+        TimingWheel.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+        return true;
+    }
+
+    private void beat() { // runs on the wheel thread
+        if (!open.get()) {
+            return;
+        }
+        if (INTERVAL > 0 && !answered) {
+            GameServer.evict(session, "heartbeat timeout");
+            return;
+        }
+        if (Outbox.of(session).isWatching()) { // spectators never send anything, watching counts as activity, the pings still catch a spectator that vanished
+            lastMessage = System.nanoTime();
+        }
+        if (IDLE_TIMEOUT > 0 && System.nanoTime() - lastMessage >= TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT)) {
+            GameServer.evict(session, "idle timeout");
+            return;
+        }
+        if (INTERVAL > 0) {
+            answered = false;
+            try {
+                session.getAsyncRemote().sendPing(PING.duplicate());
+            } catch (Exception e) { // the connection is already gone
+                GameServer.evict(session, "heartbeat failed");
+                return;
+            }
+        }
+        timeout = TimingWheel.schedule(this::beat, PERIOD, TimeUnit.SECONDS);
+    }
+}
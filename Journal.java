@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class Journal { // append-only log of room changes in memory mapped segment files, written by a single background thread so rooms never wait for the disk
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024; // size of each segment file, a full segment rolls over to the next one
+    public static final long COMMIT_INTERVAL = 10; // ms between two fsyncs, everything written in between is committed together
+
+    // record types, every record is: 4 byte length, 4 byte CRC32 of the body, body = 1 byte type, room ID (1 byte length + ASCII), fields
+    public static final byte SNAPSHOT = 1; // full state of a room, see Room.writeSnapshot
+    public static final byte MOVE = 2; // 1 byte piece, 1 byte target field, 1 byte thrown out piece (0 = none), 1 byte its home field
+    public static final byte STATE = 3; // 1 byte current player, 1 byte available moves, 1 byte dice, 1 byte tries
+    public static final byte CLOSE = 4; // no fields, the room is gone
+
+    private static volatile Journal journal; // null = journaling is off, appends are dropped
+
+    private final Path directory;
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(); // records waiting for the writer
+    private final Thread writer;
+    private FileChannel channel; // only touched by the writer thread after startup
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private volatile boolean running = true;
+    private FileLock lock; // held while the server runs, so a second server started in the same directory can't recover and delete the segments of this one
+
+    private Journal(Path directory) {
+        this.directory = directory;
+        this.writer = new Thread(this::write, "journal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public static Collection<Room> open(Path directory) throws IOException { // recovers the rooms stored in the directory and starts journaling into it
+        Files.createDirectories(directory);
+        Journal opened = new Journal(directory);
+        FileChannel lockFile = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            opened.lock = lockFile.tryLock();
+        } catch (OverlappingFileLockException e) { // held by this process already
+            opened.lock = null;
+        }
+        if (opened.lock == null) {
+            lockFile.close();
+            throw new IOException("Journal " + directory + " is used by another server, start it with its own maedn.journal");
+        }
+        List<Path> segments = opened.listSegments();
+        Map<String, Room> recovered = new LinkedHashMap<>();
+        for (Path path : segments) {
+            recover(path, recovered);
+        }
+
+        // start a fresh segment with a snapshot of every recovered room, then the old segments are no longer needed
+        opened.segmentNumber = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+        opened.openSegment();
+        for (Room room : recovered.values()) {
+            opened.put(room.writeSnapshot());
+        }
+        opened.segment.force();
+        for (Path path : segments) {
+            Files.delete(path);
+        }
+
+        journal = opened;
+        opened.writer.start();
+        return recovered.values();
+    }
+
+    public static void close() { // writes everything that is still queued and stops the writer
+        Journal current = journal;
+        if (current == null) {
+            return;
+        }
+        current.running = false;
+        try {
+            current.writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal = null;
+        try {
+            current.lock.channel().close(); // releases the lock
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return journal != null;
+    }
+
+    public static void append(ByteBuffer record) { // never blocks, the record is written and committed by the writer thread
+        Journal current = journal;
+        if (current != null) {
+            current.queue.add(record);
+        }
+    }
+
+    public static ByteBuffer record(byte type, String roomId, int fields) { // starts a record, the caller puts the fields and flips it
+        ByteBuffer record = ByteBuffer.allocate(8 + 2 + roomId.length() + fields);
+        record.position(8); // length and checksum are filled in by the writer
+        record.put(type).put((byte) roomId.length());
+        for (int i = 0; i < roomId.length(); i++) {
+            record.put((byte) roomId.charAt(i));
+        }
+        return record;
+    }
+
+    private void write() { // writer thread: drains the queue, writes the records and commits them together
+        long lastCommit = System.currentTimeMillis();
+        boolean dirty = false;
+        List<ByteBuffer> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                ByteBuffer first = queue.poll(COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    for (ByteBuffer record : batch) {
+                        if (record.remaining() > segment.remaining()) {
+                            rollOver();
+                        }
+                        put(record);
+                    }
+                    batch.clear();
+                    dirty = true;
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && (now - lastCommit >= COMMIT_INTERVAL || !running)) {
+                    segment.force(); // group commit
+                    lastCommit = now;
+                    dirty = false;
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (dirty) {
+            segment.force();
+        }
+    }
+
+    private void put(ByteBuffer record) { // fills in length and checksum and copies the record into the segment
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.limit() - 8);
+        record.putInt(0, record.limit() - 8);
+        record.putInt(4, (int) crc.getValue());
+        segment.put(record);
+    }
+
+    private void rollOver() throws IOException { // continues in a new segment, every room writes a snapshot into it so older segments can be deleted
+        segment.force();
+        Path previous = segmentPath(segmentNumber - 1);
+        segmentNumber++;
+        openSegment();
+        Files.deleteIfExists(previous); // the segment before the one just filled was superseded by the snapshots of the last roll over
+        GameServer.snapshotRooms();
+    }
+
+    private void openSegment() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("journal-%08d.log", number));
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(8, name.length() - 4));
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path path : files) {
+                segments.add(path);
+            }
+        }
+        segments.sort(Comparator.comparingInt(Journal::segmentNumber));
+        return segments;
+    }
+
+    private static void recover(Path path, Map<String, Room> rooms) throws IOException { // replays a segment, stops at the end of the written data or at a torn record
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            CRC32 crc = new CRC32();
+            while (data.remaining() >= 8) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    break;
+                }
+                ByteBuffer body = data.slice().limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                data.position(data.position() + length);
+
+                byte type = body.get();
+                String roomId = Protocol.readId(body);
+                if (type == SNAPSHOT) {
+                    rooms.computeIfAbsent(roomId, Room::new).readSnapshot(body);
+                } else if (type == CLOSE) {
+                    rooms.remove(roomId);
+                } else {
+                    Room room = rooms.get(roomId);
+                    if (room != null) { // changes of a room that has no snapshot yet are already part of its next snapshot
+                        room.readChange(type, body);
+                    }
+                }
+            }
+        }
+    }
+}
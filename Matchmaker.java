@@ -0,0 +1,119 @@
+import javax.websocket.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Matchmaker { // quick matches: sessions that sent quickjoin wait here until four of them are seated in a new room, without any lock
+    public static final long WAIT_LIMIT = Long.getLong("maedn.quickjoin.wait", 30); // seconds a session waits for other players before bots take the empty seats
+    public static final boolean BOTS = Boolean.getBoolean("maedn.quickjoin.bots"); // false = sessions wait until four players are found, however long it takes
+
+    private static final Queue<Session> queue = new ConcurrentLinkedQueue<>(); // in the order of the quickjoins, may still hold sessions that left
+    private static final Set<Session> waiting = ConcurrentHashMap.newKeySet(); // sessions in the queue that still wait, whoever removes a session from here seats it
+    private static final AtomicInteger count = new AtomicInteger(); // size of waiting, reserved in batches of four before the queue is polled
+
+    private Matchmaker() {
+    }
+
+    public static void quickJoin(Session client) {
+        if (!waiting.add(client)) { // already waiting
+            return;
+        }
+        queue.add(client);
+        count.incrementAndGet();
+        if (BOTS) {
+            TimingWheel.schedule(() -> fillWithBots(client), WAIT_LIMIT, TimeUnit.SECONDS);
+        }
+        match();
+    }
+
+    public static void leave(Session client) { // the session closed before it was seated
+        if (waiting.remove(client)) {
+            count.decrementAndGet();
+        }
+    }
+
+    public static void clear() { // sends every waiting session away, for the shutdown
+        Session client;
+        while ((client = queue.poll()) != null) {
+            if (waiting.remove(client)) {
+                count.decrementAndGet();
+                Outbox.of(client).sendError(Protocol.SHUTTING_DOWN);
+            }
+        }
+    }
+
+    public static int getWaiting() {
+        return Math.max(count.get(), 0);
+    }
+
+    private static void match() { // seats groups of four as long as there are enough sessions waiting, any number of threads can do this at once
+        while (reserve(4, 4) == 4) {
+            seat(take(4));
+        }
+    }
+
+    private static void fillWithBots(Session client) { // runs on the wheel thread when the session waited for the wait limit
+        if (!waiting.contains(client)) { // seated in the meantime
+            return;
+        }
+        int reserved = reserve(1, 4);
+        if (reserved > 0) {
+            seat(take(reserved)); // the oldest sessions, which includes the one that waited too long unless it was seated just now
+        }
+    }
+
+    private static int reserve(int min, int max) { // reserves up to max waiting sessions, but at least min, returns 0 if there are fewer than min
+        while (true) {
+            int available = count.get();
+            if (available < min) {
+                return 0;
+            }
+            int reserved = Math.min(available, max);
+            if (count.compareAndSet(available, available - reserved)) {
+                return reserved;
+            }
+        }
+    }
+
+    private static List<Session> take(int reserved) { // polls the reserved sessions from the queue, skipping the ones that left
+        List<Session> seated = new ArrayList<>(reserved);
+        while (seated.size() < reserved) {
+            Session client = queue.poll();
+            if (client == null) { // sessions that left after the reservation, the queue ran dry
+                break;
+            }
+            if (waiting.remove(client)) {
+                seated.add(client);
+            }
+        }
+        count.addAndGet(reserved - seated.size()); // leave already took the sessions that left off the count, so the part of the reservation nobody filled is given back
+        return seated;
+    }
+
+    private static void seat(List<Session> seated) {
+        if (seated.isEmpty()) {
+            return;
+        }
+        if (GameServer.isDraining()) { // the shutdown began while they were taken, see clear
+            for (Session client : seated) {
+                Outbox.of(client).sendError(Protocol.SHUTTING_DOWN);
+            }
+            return;
+        }
+        if (seated.size() < 4 && !BOTS) { // not enough left for a game, back into the queue
+            for (Session client : seated) {
+                waiting.add(client);
+                queue.add(client);
+                count.incrementAndGet();
+            }
+            return;
+        }
+        Room room = GameServer.newRoom();
+        room.execute(() -> room.start(seated));
+    }
+}
@@ -0,0 +1,258 @@
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.tyrus.server.Server;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics implements MetricsMBean { // counters, gauges and latency histograms of the server, exposed through JMX and GET /metrics
+    public static final Metrics metrics = new Metrics();
+
+    private final Histogram[] latencies = new Histogram[128]; // latency of each command, index = opcode
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+    private final LongAdder evictions = new LongAdder(); // sessions closed by a heartbeat, idle or turn timeout
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    private Metrics() {
+        for (int opcode = 1; opcode < latencies.length; opcode++) {
+            if (!Protocol.command((byte) opcode).equals("unknown")) {
+                latencies[opcode] = new Histogram();
+            }
+        }
+    }
+
+    public static class Histogram { // lock-free histogram with one bucket per power of two nanoseconds
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            buckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+            count.increment();
+            sum.add(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getPercentile(double quantile) { // upper bound of the bucket holding the quantile, in nanoseconds
+            long total = count.sum();
+            long rank = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank && seen > 0) {
+                    return 1L << (i + 1);
+                }
+            }
+            return 0;
+        }
+    }
+
+    public void record(byte opcode, long nanos) {
+        if (opcode <= 0) { // frames of clients may start with any byte
+            return;
+        }
+        Histogram histogram = latencies[opcode];
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    public void received(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    public void sent(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    public static int utf8Length(String text) { // bytes of the text on the wire, counted without encoding it
+        int bytes = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) { // 2 bytes up to U+07FF, 3 above, 4 for a surrogate pair
+                bytes += c >= 0x800 && !Character.isSurrogate(c) ? 2 : 1;
+            }
+        }
+        return bytes;
+    }
+
+    public void sendFailed() {
+        sendFailures.increment();
+    }
+
+    public void slowConsumer() {
+        slowConsumers.increment();
+    }
+
+    public void evicted() {
+        evictions.increment();
+    }
+
+    public void opened() {
+        sessions.incrementAndGet();
+    }
+
+    public void closed() {
+        sessions.decrementAndGet();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public int getSpectators() {
+        return Audience.getTotal();
+    }
+
+    @Override
+    public int getRooms() {
+        return GameServer.getRoomCount();
+    }
+
+    @Override
+    public int getRooms(String state) {
+        int[] counts = GameServer.countRoomsByState();
+        for (int i = 0; i < counts.length; i++) {
+            if (Room.stateName(i).equals(state)) {
+                return counts[i];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getLatencyPercentile(String command, double quantile) {
+        Histogram histogram = latencies[Protocol.opcode(command)];
+        return histogram != null ? histogram.getPercentile(quantile) : 0;
+    }
+
+    public String scrape() { // all metrics in the Prometheus text format
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "maedn_messages_in_total", getMessagesIn());
+        counter(out, "maedn_messages_out_total", getMessagesOut());
+        counter(out, "maedn_bytes_in_total", getBytesIn());
+        counter(out, "maedn_bytes_out_total", getBytesOut());
+        counter(out, "maedn_send_failures_total", getSendFailures());
+        counter(out, "maedn_slow_consumers_total", getSlowConsumers());
+        counter(out, "maedn_evictions_total", getEvictions());
+        out.append("# TYPE maedn_sessions gauge\nmaedn_sessions ").append(getSessions()).append('\n');
+        out.append("# TYPE maedn_spectators gauge\nmaedn_spectators ").append(getSpectators()).append('\n');
+        out.append("# TYPE maedn_quickjoin_waiting gauge\nmaedn_quickjoin_waiting ").append(Matchmaker.getWaiting()).append('\n');
+        out.append("# TYPE maedn_rooms gauge\n");
+        int[] counts = GameServer.countRoomsByState();
+        for (int i = 0; i < counts.length; i++) {
+            out.append("maedn_rooms{state=\"").append(Room.stateName(i)).append("\"} ").append(counts[i]).append('\n');
+        }
+        out.append("# TYPE maedn_command_latency_seconds summary\n");
+        for (int opcode = 1; opcode < latencies.length; opcode++) {
+            Histogram histogram = latencies[opcode];
+            if (histogram == null || histogram.getCount() == 0) {
+                continue;
+            }
+            String command = Protocol.command((byte) opcode);
+            for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                out.append("maedn_command_latency_seconds{command=\"").append(command).append("\",quantile=\"").append(quantile).append("\"} ");
+                out.append(histogram.getPercentile(quantile) / 1e9).append('\n');
+            }
+            out.append("maedn_command_latency_seconds_sum{command=\"").append(command).append("\"} ").append(histogram.getSum() / 1e9).append('\n');
+            out.append("maedn_command_latency_seconds_count{command=\"").append(command).append("\"} ").append(histogram.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    public static void register(Server server) { // registers the MBean and adds GET /metrics to the Grizzly server Tyrus runs on
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("com.maedn:type=Metrics"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            httpServer(server).getServerConfiguration().addHttpHandler(new HttpHandler() {
+                @Override
+                public void service(Request request, Response response) throws Exception {
+                    response.setContentType("text/plain; version=0.0.4");
+                    response.getWriter().write(metrics.scrape());
+                }
+            }, "/metrics");
+        } catch (Exception e) {
+            System.out.println("Metrics endpoint not available, only JMX: " + e);
+        }
+    }
+
+    static HttpServer httpServer(Server server) throws ReflectiveOperationException { // Tyrus keeps its Grizzly HttpServer private, it is the "server" field of the container the Server started
+        Object container = field(server, "server");
+        return (HttpServer) field(container, "server");
+    }
+
+    private static Object field(Object owner, String name) throws ReflectiveOperationException {
+        Field field = owner.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(owner);
+    }
+}
@@ -0,0 +1,25 @@
+public interface MetricsMBean { // JMX view of Metrics, registered as com.maedn:type=Metrics
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSendFailures();
+
+    long getSlowConsumers();
+
+    long getEvictions();
+
+    int getSessions();
+
+    int getSpectators();
+
+    int getRooms();
+
+    int getRooms(String state); // state = lobby, playing or away
+
+    long getLatencyPercentile(String command, double quantile); // nanoseconds, e.g. ("move", 0.99)
+}
@@ -0,0 +1,165 @@
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Outbox { // queues the outgoing messages of one session and sends them asynchronously, one after another
+    public static final int MAX_QUEUED = 256; // messages a session may fall behind before it is disconnected as a slow consumer
+    private static final String KEY = "outbox"; // key of the outbox in the user properties of a session
+
+    private final Session session;
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>(); // messages waiting to be sent, text (String) or binary (ByteBuffer)
+    private final AtomicInteger queued = new AtomicInteger(); // messages queued or in flight
+    private final AtomicBoolean sending = new AtomicBoolean(); // true while a message is in flight
+    private int inFlight; // size of the message in flight, only touched by the thread holding sending
+    private volatile boolean closed = false;
+    private volatile boolean delta = false; // true if the client asked for delta board updates instead of the full board
+    private volatile boolean binary = false; // true if the client speaks the binary protocol, see Protocol
+    private final AtomicReference<Audience.Spectator> spectator = new AtomicReference<>(); // set while the session watches a room, touched by the room, the fanout and the Tyrus threads
+
+    private Outbox(Session session) {
+        this.session = session;
+    }
+
+    public static Outbox of(Session session) { // returns the outbox of a session, creating it if the session has none yet
+        Object outbox = session.getUserProperties().get(KEY);
+        if (outbox == null) {
+            outbox = new Outbox(session);
+            session.getUserProperties().put(KEY, outbox);
+        }
+        return (Outbox) outbox;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isWatching() {
+        return spectator.get() != null;
+    }
+
+    void watch(Audience.Spectator watching) {
+        spectator.set(watching);
+    }
+
+    Audience.Spectator stopWatching() { // returns what the session watched, null if nothing
+        return spectator.getAndSet(null);
+    }
+
+    void stopWatching(Audience.Spectator watching) { // unless the session already watches another room
+        spectator.compareAndSet(watching, null);
+    }
+
+    public void sendEvent(byte opcode, int value) { // sends "command:value" or a two byte frame, depending on the protocol of the client
+        if (binary) {
+            send(Protocol.frame(opcode, value));
+        } else {
+            send(Protocol.command(opcode) + ":" + value);
+        }
+    }
+
+    public void sendId(byte opcode, String id) { // sends "created:<id>" / "joined:<id>" / "token:<token>" or the matching frame
+        if (binary) {
+            send(Protocol.idFrame(opcode, id));
+        } else {
+            send(Protocol.command(opcode) + ":" + id);
+        }
+    }
+
+    public void sendError(byte code) {
+        if (binary) {
+            send(Protocol.frame(Protocol.ERROR, code));
+        } else {
+            send("error:" + Protocol.error(code));
+        }
+    }
+
+    public void send(String message) { // never blocks, a session that can't keep up is disconnected instead
+        enqueue(message);
+    }
+
+    public void send(ByteBuffer frame) { // the frame may be shared with other sessions, it is never modified
+        enqueue(frame);
+    }
+
+    private void enqueue(Object message) {
+        if (closed) {
+            return;
+        }
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            disconnect();
+            return;
+        }
+        queue.add(message);
+        flush();
+    }
+
+    private void flush() { // starts sending the next message unless one is already in flight
+        if (closed || !sending.compareAndSet(false, true)) {
+            return;
+        }
+        Object next = queue.poll();
+        if (next == null) {
+            sending.set(false);
+            if (!queue.isEmpty()) { // a message was added while we were checking
+                flush();
+            }
+            return;
+        }
+        try {
+            if (next instanceof ByteBuffer) {
+                inFlight = ((ByteBuffer) next).remaining();
+                session.getAsyncRemote().sendBinary(((ByteBuffer) next).duplicate(), this::onSent); // every session reads its own view of the shared frame
+            } else {
+                inFlight = Metrics.utf8Length((String) next);
+                session.getAsyncRemote().sendText((String) next, this::onSent);
+            }
+        } catch (Exception e) { // the session is already closed
+            Metrics.metrics.sendFailed();
+            closed = true;
+            sending.set(false);
+        }
+    }
+
+    private void onSent(SendResult result) {
+        queued.decrementAndGet();
+        if (result.isOK()) {
+            Metrics.metrics.sent(inFlight);
+        } else {
+            Metrics.metrics.sendFailed();
+            closed = true;
+            if (!(result.getException() instanceof IllegalStateException))
+                result.getException().printStackTrace();
+        }
+        sending.set(false);
+        flush();
+    }
+
+    private void disconnect() {
+        Metrics.metrics.slowConsumer();
+        closed = true;
+        queue.clear();
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "slow consumer"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import org.glassfish.tyrus.core.extension.ExtendedExtension;
+import org.glassfish.tyrus.core.frame.CloseFrame;
+import org.glassfish.tyrus.core.frame.Frame;
+
+import javax.websocket.CloseReason;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class PerMessageDeflate implements ExtendedExtension { // permessage-deflate (RFC 7692) for Tyrus, which ships no implementation. Negotiated without context takeover, so a connection keeps no dictionary between messages
+    public static final String NAME = "permessage-deflate";
+    private static final int MIN_SIZE = 64; // smaller messages are sent as they are, compressing them would not pay off
+    private static final int MAX_SIZE = Integer.getInteger("maedn.frame.max", 4 * 1024 * 1024); // a message that inflates to more is rejected, the same limit Tyrus puts on uncompressed frames
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff}; // removed from every compressed message by the sender, see RFC 7692 7.2.1
+    private static final byte TEXT = 0x1;
+    private static final byte BINARY = 0x2;
+    private static final byte CONTINUATION = 0x0;
+
+    private static final String DEFLATER = "deflater"; // keys in the extension context of a connection
+    private static final String INFLATER = "inflater";
+    private static final String INFLATING = "inflating"; // bytes inflated so far, set while the fragments of a compressed message arrive
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<Parameter> getParameters() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public List<Parameter> onExtensionNegotiation(ExtensionContext context, List<Parameter> requested) { // accepts every offer, both sides reset their window after each message
+        List<Parameter> response = new ArrayList<>();
+        response.add(parameter("server_no_context_takeover"));
+        response.add(parameter("client_no_context_takeover"));
+        context.getProperties().put(DEFLATER, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        context.getProperties().put(INFLATER, new Inflater(true));
+        return response;
+    }
+
+    @Override
+    public void onHandshakeResponse(ExtensionContext context, List<Parameter> response) { // client side
+        context.getProperties().put(DEFLATER, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        context.getProperties().put(INFLATER, new Inflater(true));
+    }
+
+    @Override
+    public Frame processOutgoing(ExtensionContext context, Frame frame) {
+        Deflater deflater = (Deflater) context.getProperties().get(DEFLATER);
+        if (deflater == null || frame.isControlFrame() || !frame.isFin() || frame.getOpcode() == CONTINUATION || frame.getPayloadLength() < MIN_SIZE) {
+            return frame; // only whole messages are compressed, Tyrus sends the messages of this server unfragmented
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) frame.getPayloadLength());
+        synchronized (deflater) { // the outbox and the error replies of a session may send at the same time
+            deflater.setInput(frame.getPayloadData());
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) > 0) {
+                out.write(buffer, 0, length);
+            }
+            deflater.reset();
+        }
+        byte[] compressed = out.toByteArray();
+        byte[] payload = new byte[compressed.length - TAIL.length];
+        System.arraycopy(compressed, 0, payload, 0, payload.length);
+        return Frame.builder(frame).rsv1(true).payloadData(payload).payloadLength(payload.length).build();
+    }
+
+    @Override
+    public Frame processIncoming(ExtensionContext context, Frame frame) {
+        Inflater inflater = (Inflater) context.getProperties().get(INFLATER);
+        if (inflater == null || frame.isControlFrame()) {
+            return frame;
+        }
+        boolean first = frame.getOpcode() == TEXT || frame.getOpcode() == BINARY;
+        if (first ? !frame.isRsv1() : context.getProperties().get(INFLATING) == null) { // not compressed
+            return frame;
+        }
+        long inflated = first ? 0 : (Long) context.getProperties().get(INFLATING);
+        long limit = MAX_SIZE - inflated; // earlier fragments count towards the limit of the message
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(frame.getPayloadLength() * 4 + 64, limit));
+        try {
+            if (!inflate(inflater, frame.getPayloadData(), out, limit) || frame.isFin() && !inflate(inflater, TAIL, out, limit)) {
+                reset(context, inflater);
+                return new CloseFrame(new CloseReason(CloseReason.CloseCodes.TOO_BIG, "Message larger than " + MAX_SIZE + " bytes")); // Tyrus only logs exceptions of extensions, the close frame makes it close the connection
+            }
+        } catch (DataFormatException e) {
+            reset(context, inflater);
+            throw new IllegalStateException("Invalid compressed message", e);
+        }
+        if (frame.isFin()) {
+            reset(context, inflater);
+        } else {
+            context.getProperties().put(INFLATING, inflated + out.size());
+        }
+        byte[] payload = out.toByteArray();
+        return Frame.builder(frame).rsv1(false).payloadData(payload).payloadLength(payload.length).build();
+    }
+
+    private static void reset(ExtensionContext context, Inflater inflater) { // ready for the next message
+        inflater.reset();
+        context.getProperties().remove(INFLATING);
+    }
+
+    private static boolean inflate(Inflater inflater, byte[] data, ByteArrayOutputStream out, long limit) throws DataFormatException { // false as soon as the output grows past the limit, a few KB of zeros can inflate to gigabytes
+        inflater.setInput(data);
+        byte[] buffer = new byte[1024];
+        while (!inflater.needsInput()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                break;
+            }
+            if (out.size() + length > limit) {
+                return false;
+            }
+            out.write(buffer, 0, length);
+        }
+        return true;
+    }
+
+    @Override
+    public void destroy(ExtensionContext context) {
+        Object deflater = context.getProperties().remove(DEFLATER);
+        if (deflater != null) {
+            ((Deflater) deflater).end();
+        }
+        Object inflater = context.getProperties().remove(INFLATER);
+        if (inflater != null) {
+            ((Inflater) inflater).end();
+        }
+    }
+
+    private static Parameter parameter(String name) {
+        return new Parameter() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getValue() {
+                return null;
+            }
+        };
+    }
+}
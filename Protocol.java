@@ -0,0 +1,186 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class Protocol { // opcodes and frame layouts of the binary protocol, every frame is a one byte opcode followed by fixed width fields
+    // commands sent by clients, the relayed ones (rolls, nextplayer) are sent back to the other players with the same opcode
+    public static final byte CREATE = 1; // no fields
+    public static final byte JOIN = 2; // room ID: 1 byte length + ASCII
+    public static final byte READY = 3; // 1 byte, 1 = ready, 0 = not ready
+    public static final byte VISUALROLL = 4; // 1 byte dice value
+    public static final byte ROLL = 5; // 1 byte dice value
+    public static final byte PIECEOUTROLL = 6; // 1 byte dice value
+    public static final byte NEXTPLAYER = 7; // no fields from clients, 1 byte new current player to clients
+    public static final byte MOVE = 8; // 1 byte piece
+    public static final byte MOVEWIN = 9; // 1 byte piece
+    public static final byte MOVEPIECEOUT = 10; // 1 byte piece
+    public static final byte SYNC = 11; // no fields
+    public static final byte DICE = 12; // no fields from clients, the server rolls. To clients: 1 byte player, 1 byte dice value, 1 byte count, count * piece that can move
+    public static final byte PLAY = 13; // 1 byte piece to move with the dice the server rolled
+    public static final byte RECONNECT = 14; // token: 1 byte length + ASCII, takes back the seat of a dropped connection
+    public static final byte QUICKJOIN = 15; // no fields, waits for a quick match, see Matchmaker
+    public static final byte SPECTATE = 16; // room ID: 1 byte length + ASCII, receives the events of the room without taking part
+
+    // events only sent by the server
+    public static final byte CREATED = 32; // room ID: 1 byte length + ASCII
+    public static final byte JOINED = 33; // room ID: 1 byte length + ASCII
+    public static final byte START = 34; // 1 byte color of the player
+    public static final byte BOARD = 35; // 4 byte sequence, 1 byte command opcode, 16 bytes field of each piece
+    public static final byte DELTA = 36; // 4 byte sequence, 1 byte command opcode, 1 byte count, count * (piece, from, to)
+    public static final byte TURN = 37; // 4 byte sequence, 1 byte player, 1 byte dice value, 1 byte count, count * (piece, from, to), 1 byte next player
+    public static final byte TOKEN = 38; // token to reconnect with: 1 byte length + ASCII
+    public static final byte AWAY = 39; // 1 byte color of a player that lost the connection
+    public static final byte BACK = 40; // 1 byte color of a player that reconnected
+    public static final byte REDIRECT = 41; // host:port of the node that owns the room: 1 byte length + ASCII, the client connects there and repeats its join, spectate or reconnect, see Cluster
+    public static final byte ERROR = 127; // 1 byte error code
+
+    // error codes
+    public static final byte ROOM_NOT_FOUND = 1;
+    public static final byte ROOM_FULL = 2;
+    public static final byte PLAYER_DISCONNECTED = 3;
+    public static final byte INVALID_MOVE = 4;
+    public static final byte NOT_YOUR_TURN = 5;
+    public static final byte INVALID_TOKEN = 6;
+    public static final byte TIMEOUT = 7; // the room was closed because the game did not start in time
+    public static final byte SHUTTING_DOWN = 8; // the server is about to restart and starts no new games
+
+    private Protocol() {
+    }
+
+    public static byte opcode(String command) { // maps a text command to its opcode, 0 = unknown command
+        switch (command) {
+            case "create": return CREATE;
+            case "join": return JOIN;
+            case "ready": return READY;
+            case "visualroll": return VISUALROLL;
+            case "roll": return ROLL;
+            case "pieceoutroll": return PIECEOUTROLL;
+            case "nextplayer": return NEXTPLAYER;
+            case "move": return MOVE;
+            case "movewin": return MOVEWIN;
+            case "movepieceout": return MOVEPIECEOUT;
+            case "sync": return SYNC;
+            case "dice": return DICE;
+            case "play": return PLAY;
+            case "reconnect": return RECONNECT;
+            case "quickjoin": return QUICKJOIN;
+            case "spectate": return SPECTATE;
+            default: return 0;
+        }
+    }
+
+    public static String command(byte opcode) { // maps an opcode to the name used by the text protocol
+        switch (opcode) {
+            case CREATE: return "create";
+            case JOIN: return "join";
+            case READY: return "ready";
+            case VISUALROLL: return "visualroll";
+            case ROLL: return "roll";
+            case PIECEOUTROLL: return "pieceoutroll";
+            case NEXTPLAYER: return "nextplayer";
+            case MOVE: return "move";
+            case MOVEWIN: return "movewin";
+            case MOVEPIECEOUT: return "movepieceout";
+            case SYNC: return "sync";
+            case DICE: return "dice";
+            case PLAY: return "play";
+            case RECONNECT: return "reconnect";
+            case QUICKJOIN: return "quickjoin";
+            case SPECTATE: return "spectate";
+            case CREATED: return "created";
+            case JOINED: return "joined";
+            case START: return "start";
+            case BOARD: return "board";
+            case DELTA: return "delta";
+            case TURN: return "turn";
+            case TOKEN: return "token";
+            case AWAY: return "away";
+            case BACK: return "back";
+            case REDIRECT: return "redirect";
+            case ERROR: return "error";
+            default: return "unknown";
+        }
+    }
+
+    public static String error(byte code) { // maps an error code to the name used by the text protocol
+        switch (code) {
+            case ROOM_NOT_FOUND: return "roomnotfound";
+            case ROOM_FULL: return "roomfull";
+            case PLAYER_DISCONNECTED: return "playerdisconnected";
+            case INVALID_MOVE: return "invalidmove";
+            case NOT_YOUR_TURN: return "notyourturn";
+            case INVALID_TOKEN: return "invalidtoken";
+            case TIMEOUT: return "timeout";
+            case SHUTTING_DOWN: return "shuttingdown";
+            default: return "unknown";
+        }
+    }
+
+    public static int parseValue(byte opcode, String data) { // the value of a text command, e.g. "true" for ready or the piece for move
+        if (opcode == READY) {
+            return data.equals("true") ? 1 : 0;
+        }
+        return data.isEmpty() ? 0 : Integer.parseInt(data); // nextplayer, sync and dice have no data
+    }
+
+    public static String readId(ByteBuffer frame) { // reads a length prefixed room ID or token
+        int length = frame.get() & 0xFF;
+        byte[] id = new byte[length];
+        frame.get(id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    public static ByteBuffer frame(byte opcode, int value) { // a frame with a single one byte field
+        ByteBuffer frame = ByteBuffer.allocate(2);
+        frame.put(opcode).put((byte) value);
+        return frame.flip();
+    }
+
+    public static ByteBuffer idFrame(byte opcode, String id) { // a frame with a length prefixed room ID or token
+        ByteBuffer frame = ByteBuffer.allocate(2 + id.length());
+        frame.put(opcode).put((byte) id.length());
+        for (int i = 0; i < id.length(); i++) {
+            frame.put((byte) id.charAt(i));
+        }
+        return frame.flip();
+    }
+
+    public static ByteBuffer boardFrame(int sequence, byte command, Board board) {
+        ByteBuffer frame = ByteBuffer.allocate(6 + Board.PIECES);
+        frame.put(BOARD).putInt(sequence).put(command);
+        board.writeTo(frame);
+        return frame.flip();
+    }
+
+    public static ByteBuffer deltaFrame(int sequence, byte command, int piece, int from, int to, int captured, int capturedTo) { // captured = 0 if no piece was thrown out
+        ByteBuffer frame = ByteBuffer.allocate(captured != 0 ? 13 : 10);
+        frame.put(DELTA).putInt(sequence).put(command).put((byte) (captured != 0 ? 2 : 1));
+        frame.put((byte) piece).put((byte) from).put((byte) to);
+        if (captured != 0) {
+            frame.put((byte) captured).put((byte) to).put((byte) capturedTo);
+        }
+        return frame.flip();
+    }
+
+    public static ByteBuffer diceFrame(int player, int dice, int[] pieces, int count) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + count);
+        frame.put(DICE).put((byte) player).put((byte) dice).put((byte) count);
+        for (int i = 0; i < count; i++) {
+            frame.put((byte) pieces[i]);
+        }
+        return frame.flip();
+    }
+
+    public static ByteBuffer turnFrame(int sequence, int player, int dice, int piece, int from, int to, int captured, int capturedTo, int next) { // piece = 0 if nothing moved, captured = 0 if no piece was thrown out
+        int count = piece == 0 ? 0 : captured == 0 ? 1 : 2;
+        ByteBuffer frame = ByteBuffer.allocate(9 + count * 3);
+        frame.put(TURN).putInt(sequence).put((byte) player).put((byte) dice).put((byte) count);
+        if (piece != 0) {
+            frame.put((byte) piece).put((byte) from).put((byte) to);
+        }
+        if (captured != 0) {
+            frame.put((byte) captured).put((byte) to).put((byte) capturedTo);
+        }
+        frame.put((byte) next);
+        return frame.flip();
+    }
+}
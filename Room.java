@@ -0,0 +1,760 @@
+import javax.websocket.Session;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Room { // a single game room, owns all of its state and runs its commands one at a time
+    private static final ExecutorService workers = Executors.newWorkStealingPool(); // shared by all rooms, a room never occupies more than one worker at a time
+    private static final int MAX_BATCH = 64; // commands run per turn on a worker before the room gives other rooms a chance
+    private static final SecureRandom random = new SecureRandom();
+    public static final long GRACE_PERIOD = 60; // seconds a dropped player has to reconnect before the game is terminated
+    public static final long LOBBY_TIMEOUT = Long.getLong("maedn.timeout.lobby", 600); // seconds a room may wait for its game to start before it is closed, 0 = no limit
+    public static final long BOT_DELAY = 1; // seconds a bot waits before it plays, so the players can follow its turn
+    public static final long TURN_TIMEOUT = Long.getLong("maedn.timeout.turn", 120); // seconds a player has for a turn before being evicted like a dropped connection, 0 = no limit
+    public static final long HANDOFF_RETRY = 10; // seconds until a room tries again to move to the node that owns its shard
+
+    public static final int LOBBY = 0; // states of a room, for the metrics
+    public static final int PLAYING = 1;
+    public static final int AWAY = 2; // a player lost the connection and has not reconnected yet
+
+    private final String id;
+    private volatile int state = LOBBY; // written inside the mailbox, read by the metrics
+    private final Queue<Command> mailbox = new ConcurrentLinkedQueue<>(); // commands waiting to be run for this room
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // true while the room is queued or running on a worker
+
+    // everything below is only touched from inside the mailbox, so it needs no locking
+    private final Set<Session> players = new LinkedHashSet<>(); // list of players in the room
+    private final Map<Integer, Session> playerColor = new HashMap<>(); // player color for each session
+    private final String[] tokens = new String[5]; // reconnect token of each color (index 0 is unused), empty for bots
+    private final boolean[] bots = new boolean[5]; // colors played by the server because a quick match found no player for them
+    private int botCount = 0;
+    private final Board board = new Board(); // position of each piece
+    private final Audience audience = new Audience(); // spectators, they get every event but never slow down the players
+    private final Set<Session> ready = new HashSet<>(); // players that are ready, all four = start the game
+    private int currentPlayer = 0; // color of the player whose turn it is, 0 = game not started
+    private int availableMoves = 0; // fields the current player may move with the last roll
+    private int dice = 0; // value the server rolled for the current player that still has to be played, 0 = the player has to roll
+    private int tries = 0; // rolls of the current player in this turn
+    private final int[] legalPieces = new int[4]; // pieces the current player can move with the dice
+    private int legalCount = 0;
+    private int sequence = 0; // incremented on every change of the board, lets delta clients detect missed updates
+    private boolean closed = false; // set once the room was torn down, remaining commands are dropped
+    private boolean moving = false; // set while the room is sent to another node, the game is paused until it arrived
+    private TimingWheel.Timeout lobbyTimeout; // timers fire on the wheel thread, the timed work itself runs in the mailbox
+    private TimingWheel.Timeout turnTimeout;
+    private int turn = 0; // incremented on every turn, a turn timeout only evicts the player of its own turn
+
+    public Room(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case LOBBY: return "lobby";
+            case PLAYING: return "playing";
+            default: return "away";
+        }
+    }
+
+    public interface Command { // a piece of work that runs inside the room
+        void run() throws Exception;
+    }
+
+    public void execute(Command command) { // queue a command, it runs after every command queued before it
+        mailbox.add(command);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this::drain);
+        }
+    }
+
+    private void drain() { // runs on a worker, only one drain per room can be active at a time
+        for (int i = 0; i < MAX_BATCH; i++) {
+            Command command = mailbox.poll();
+            if (command == null) {
+                break;
+            }
+            try {
+                command.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        scheduled.set(false);
+        if (!mailbox.isEmpty()) { // more commands arrived (or the batch limit was hit), go again
+            schedule();
+        }
+    }
+
+    public void create(Session client) throws Exception {
+        Outbox.of(client).sendId(Protocol.CREATED, id); // send the room ID to the client
+        players.add(client); // add the client to the room
+        awaitStart();
+    }
+
+    public void awaitStart() { // closes the room if the game does not start in time, also for a lobby that moved here from another node
+        if (LOBBY_TIMEOUT > 0) {
+            lobbyTimeout = TimingWheel.schedule(() -> execute(() -> {
+                if (currentPlayer == 0) {
+                    close(Protocol.TIMEOUT);
+                }
+            }), LOBBY_TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    public void join(Session client) throws Exception {
+        if (closed) {
+            Outbox.of(client).sendError(Protocol.ROOM_NOT_FOUND);
+            return;
+        }
+        if (players.size() == 4 || currentPlayer != 0) { // check if the room is full or the game already started (seats of dropped players are only taken back with their token), if yes send an error
+            Outbox.of(client).sendError(Protocol.ROOM_FULL);
+            return;
+        }
+        if (!GameServer.bindSession(client, this)) { // in another room already
+            return;
+        }
+        if (!Heartbeat.of(client).isOpen()) { // closed before it was bound, so GameServer.release did not find this room
+            GameServer.unbindSession(client, this);
+            return;
+        }
+        players.add(client); // add the client to the room
+        Outbox.of(client).sendId(Protocol.JOINED, id); // send the room ID to the client
+    }
+
+    public void spectate(Session client) { // watch the game, read only
+        if (closed) {
+            Outbox.of(client).sendError(Protocol.ROOM_NOT_FOUND);
+            return;
+        }
+        audience.add(client, sequence, board);
+    }
+
+    public void start(List<Session> seated) { // seats the players of a quick match and starts the game right away, the seats nobody took are played by bots
+        List<Session> dropped = new ArrayList<>(0);
+        for (Session client : seated) {
+            players.add(client);
+            if (!GameServer.bindSession(client, this) || !Heartbeat.of(client).isOpen()) { // joined another room while waiting, or closed before it was bound, so GameServer.release did not find this room
+                GameServer.unbindSession(client, this);
+                dropped.add(client);
+            }
+            Outbox.of(client).sendId(Protocol.JOINED, id);
+        }
+        startGame(Matchmaker.BOTS);
+        for (Session client : dropped) { // leave like any dropped player, the seat waits for the grace period
+            disconnect(client);
+        }
+    }
+
+    private void startGame(boolean withBots) { // withBots = the seats nobody took are played by the server, only for quick matches
+        if (!withBots && players.size() < 4) {
+            return;
+        }
+        state = PLAYING;
+        currentPlayer = 1; // initialize variables for the game data
+        availableMoves = 0;
+        int playerNumber = 1;
+        for (Session player : players) { // assign a color to each player
+            tokens[playerNumber] = id + "." + Long.toHexString(random.nextLong()); // lets the player take back the seat after losing the connection
+            Outbox.of(player).sendEvent(Protocol.START, playerNumber);
+            Outbox.of(player).sendId(Protocol.TOKEN, tokens[playerNumber]);
+            playerColor.put(playerNumber, player); // Assign a color to a player
+            playerNumber++;
+        }
+        for (int color = playerNumber; color <= 4; color++) {
+            tokens[color] = ""; // nobody can take over a bot
+            bots[color] = true;
+            botCount++;
+        }
+        if (lobbyTimeout != null) {
+            lobbyTimeout.cancel();
+        }
+        startTurn();
+        snapshot();
+    }
+
+    public void handle(byte command, int value, Session client) throws Exception { // runs a command of a player inside the room, the same for text and binary clients
+        if (closed || moving || !players.contains(client)) {
+            return;
+        }
+        switch (command) {
+            case Protocol.READY: // set the player as ready (or not ready)
+                if (value == 1) { // check if the player wants to be ready or not ready, a player only counts once
+                    ready.add(client);
+                } else {
+                    ready.remove(client);
+                }
+                if (ready.size() == 4 && currentPlayer == 0) { // start the game if all players are ready
+                    startGame(false);
+                }
+                break;
+            case Protocol.VISUALROLL: // send the visual roll to all players in the room (adds no rolls to the player)
+                broadcast(Protocol.VISUALROLL, value, client);
+                break;
+            case Protocol.NEXTPLAYER: // switch to the next player
+                if (currentPlayer != 0 && playerColor.get(currentPlayer) == client) {
+                    currentPlayer++;
+                    if (currentPlayer > 4) {
+                        currentPlayer = 1;
+                    }
+                    dice = 0; // a turn the server rolled for ends as well
+                    tries = 0;
+                    startTurn();
+                    journalState();
+                    broadcast(Protocol.NEXTPLAYER, currentPlayer, client);
+                }
+                break;
+            case Protocol.DICE: // the server rolls for the current player, checks which pieces can move and plays the move itself if there is no choice
+                if (currentPlayer == 0 || playerColor.get(currentPlayer) != client) {
+                    Outbox.of(client).sendError(Protocol.NOT_YOUR_TURN);
+                    return;
+                }
+                if (dice != 0) { // the last roll was not played yet
+                    Outbox.of(client).sendError(Protocol.INVALID_MOVE);
+                    return;
+                }
+                rollDice();
+                break;
+            case Protocol.PLAY: // play the piece the current player chose for the dice the server rolled
+                if (currentPlayer == 0 || playerColor.get(currentPlayer) != client) {
+                    Outbox.of(client).sendError(Protocol.NOT_YOUR_TURN);
+                    return;
+                }
+                boolean legal = false;
+                for (int i = 0; i < legalCount && dice != 0; i++) {
+                    if (legalPieces[i] == value) {
+                        legal = true;
+                        break;
+                    }
+                }
+                if (!legal) {
+                    Outbox.of(client).sendError(Protocol.INVALID_MOVE);
+                    return;
+                }
+                play(value);
+                break;
+            case Protocol.PIECEOUTROLL: // send the piece out roll to all players in the room (acts like roll but displays a different message)
+                broadcast(Protocol.PIECEOUTROLL, value, client);
+                break;
+            case Protocol.ROLL: // send the roll to all players in the room (will add moves)
+                if (!mayPlayLegacy(client, value >= 1 && value <= 6)) {
+                    return;
+                }
+                availableMoves = value; // set the available moves for the current player
+                journalState();
+                broadcast(Protocol.ROLL, value, client);
+                break;
+            case Protocol.MOVE: // move a piece
+            case Protocol.MOVEWIN: // like move but onto a finish field
+            case Protocol.MOVEPIECEOUT: // move a piece out of the home field onto the start field of its color, only with a 6
+                if (!mayPlayLegacy(client, ownPiece(value) && availableMoves != 0)) {
+                    return;
+                }
+                int from = board.getPosition(value);
+
+                // The same rules as for the rolls of the server: the target field in the color path of the current player, never onto a piece of the own color
+                int targetField = Rules.getTarget(board, value, availableMoves);
+                boolean home = from <= 16;
+                boolean finish = targetField >= 17 && targetField <= 32;
+                if (targetField == 0 || home != (command == Protocol.MOVEPIECEOUT) || command == Protocol.MOVEWIN && !finish) {
+                    Outbox.of(client).sendError(Protocol.INVALID_MOVE);
+                    return;
+                }
+
+                // Perform the move, throws out other pieces if the target field is occupied. The roll is used up
+                int captured = board.move(value, targetField);
+                availableMoves = 0;
+                journalState();
+
+                // Broadcast the game state to all players in the room
+                broadcastBoard(command, value, from, captured, client);
+                break;
+            case Protocol.SYNC: // send the full board to a client that missed a delta
+                Outbox outbox = Outbox.of(client);
+                if (outbox.isBinary()) {
+                    outbox.send(Protocol.boardFrame(sequence, Protocol.SYNC, board));
+                } else {
+                    outbox.send("sync:" + sequence + ":" + board);
+                }
+                break;
+        }
+    }
+
+    private boolean mayPlayLegacy(Session client, boolean valid) { // the roll and move commands of older clients: only the current player, only while no roll of the server waits to be played, and only with a valid dice value or one of their own pieces
+        if (currentPlayer == 0 || playerColor.get(currentPlayer) != client) {
+            Outbox.of(client).sendError(Protocol.NOT_YOUR_TURN);
+            return false;
+        }
+        if (dice != 0 || !valid) {
+            Outbox.of(client).sendError(Protocol.INVALID_MOVE);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean ownPiece(int piece) {
+        return piece >= 1 && piece <= Board.PIECES && Rules.colorOf(piece) == currentPlayer;
+    }
+
+    private void rollDice() { // the server rolls for the current player and plays the move itself if there is no choice
+        dice = Rules.roll();
+        availableMoves = dice;
+        tries++;
+        legalCount = Rules.getLegalMoves(board, currentPlayer, dice, legalPieces);
+        if (legalCount == 0) {
+            endTurn(0, 0, 0);
+        } else if (legalCount == 1) {
+            play(legalPieces[0]);
+        } else { // let the player choose, everybody sees the roll
+            journalState();
+            broadcastDice();
+        }
+    }
+
+    private void play(int piece) { // moves a piece with the dice the server rolled, the move was checked by Rules
+        int from = board.getPosition(piece);
+        int captured = board.move(piece, Rules.getTarget(board, piece, dice));
+        sequence++;
+        journalMove(piece, captured);
+        endTurn(piece, from, captured);
+    }
+
+    private void endTurn(int piece, int from, int captured) { // decides who rolls next and sends the whole turn to every player as one event. piece = 0 if nothing could be moved
+        int player = currentPlayer;
+        int rolled = dice;
+        boolean again;
+        if (piece != 0) {
+            again = rolled == 6; // a 6 lets the player roll again
+            tries = 0;
+        } else {
+            again = tries < Rules.TRIES && !Rules.isOnPath(board, player); // a player without pieces on the path gets three tries to roll a 6
+        }
+        if (!again) {
+            currentPlayer = currentPlayer % 4 + 1;
+            tries = 0;
+        }
+        dice = 0;
+        legalCount = 0;
+        startTurn();
+        journalState();
+
+        int to = piece != 0 ? board.getPosition(piece) : 0;
+        int capturedTo = captured != 0 ? board.getPosition(captured) : 0;
+        String text = null;
+        ByteBuffer frame = null;
+        for (Session p : players) {
+            Outbox outbox = Outbox.of(p);
+            if (outbox.isBinary()) {
+                if (frame == null) {
+                    frame = Protocol.turnFrame(sequence, player, rolled, piece, from, to, captured, capturedTo, currentPlayer);
+                }
+                outbox.send(frame);
+            } else {
+                if (text == null) {
+                    text = turnText(player, rolled, piece, from, to, captured, capturedTo);
+                }
+                outbox.send(text);
+            }
+        }
+        if (!audience.isEmpty()) {
+            if (piece != 0) {
+                audience.update(sequence, board);
+            }
+            audience.publish(text != null ? text : turnText(player, rolled, piece, from, to, captured, capturedTo),
+                    frame != null ? frame : Protocol.turnFrame(sequence, player, rolled, piece, from, to, captured, capturedTo, currentPlayer));
+        }
+    }
+
+    private String turnText(int player, int rolled, int piece, int from, int to, int captured, int capturedTo) { // turn:<sequence>:<player>:<dice>:<changes>:<next player>
+        StringBuilder message = new StringBuilder(48);
+        message.append("turn:").append(sequence).append(':').append(player).append(':').append(rolled).append(':');
+        if (piece != 0) {
+            appendChanges(message, piece, from, to, captured, capturedTo);
+        }
+        message.append(':').append(currentPlayer);
+        return message.toString();
+    }
+
+    private void startTurn() { // restarts the turn timer for the current player, or lets the bot play
+        turn++;
+        if (turnTimeout != null) {
+            turnTimeout.cancel();
+        }
+        int expected = turn;
+        if (bots[currentPlayer]) {
+            turnTimeout = TimingWheel.schedule(() -> execute(() -> playBot(expected)), BOT_DELAY, TimeUnit.SECONDS);
+        } else if (TURN_TIMEOUT > 0) {
+            turnTimeout = TimingWheel.schedule(() -> execute(() -> {
+                Session player = playerColor.get(currentPlayer);
+                if (!closed && !moving && turn == expected && players.contains(player)) { // a dropped player is already waited for by the grace period
+                    GameServer.evict(player, "turn timeout");
+                }
+            }), TURN_TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    private void playBot(int expected) { // one roll of a bot, endTurn starts its next roll if it may roll again
+        if (closed || moving || turn != expected) {
+            return;
+        }
+        if (dice == 0) {
+            rollDice();
+        }
+        if (dice != 0 && legalCount > 1) { // rollDice left the choice to the bot
+            play(Rules.choose(board, dice, legalPieces, legalCount));
+        }
+    }
+
+    private void broadcastDice() { // send the roll and the pieces that can move to every player, dice:<player>:<dice>:<pieces>
+        String text = null;
+        ByteBuffer frame = null;
+        for (Session player : players) {
+            Outbox outbox = Outbox.of(player);
+            if (outbox.isBinary()) {
+                if (frame == null) {
+                    frame = Protocol.diceFrame(currentPlayer, dice, legalPieces, legalCount);
+                }
+                outbox.send(frame);
+            } else {
+                if (text == null) {
+                    text = diceText();
+                }
+                outbox.send(text);
+            }
+        }
+        if (!audience.isEmpty()) {
+            audience.publish(text != null ? text : diceText(), frame != null ? frame : Protocol.diceFrame(currentPlayer, dice, legalPieces, legalCount));
+        }
+    }
+
+    private String diceText() {
+        StringBuilder message = new StringBuilder(24);
+        message.append("dice:").append(currentPlayer).append(':').append(dice).append(':');
+        for (int i = 0; i < legalCount; i++) {
+            if (i > 0) {
+                message.append(',');
+            }
+            message.append(legalPieces[i]);
+        }
+        return message.toString();
+    }
+
+    private static void appendChanges(StringBuilder message, int piece, int from, int to, int captured, int capturedTo) { // piece:from:to, followed by ,captured:to:home if a piece was thrown out
+        message.append(piece).append(':').append(from).append(':').append(to);
+        if (captured != 0) { // the thrown out piece went from the target field back home
+            message.append(',').append(captured).append(':').append(to).append(':').append(capturedTo);
+        }
+    }
+
+    public void disconnect(Session client) { // a player lost the connection, a started game waits for the player to reconnect
+        if (closed || !players.remove(client)) {
+            return;
+        }
+        int color = getColor(client);
+        if (currentPlayer == 0) { // the game did not start yet, nothing worth keeping
+            close();
+            return;
+        }
+        if (color == 0) { // not seated, nothing to wait for
+            GameServer.unbindSession(client, this);
+            return;
+        }
+        state = AWAY;
+        broadcast(Protocol.AWAY, color, null);
+        awaitReconnect(color, client);
+    }
+
+    public void reconnect(Session client, String token) throws Exception { // gives the seat with the token to a new connection
+        int color = 0;
+        for (int i = 1; i <= 4; i++) {
+            if (token.equals(tokens[i])) {
+                color = i;
+            }
+        }
+        if (closed || color == 0 || players.contains(playerColor.get(color)) || !GameServer.bindSession(client, this)) { // unknown token, the seat is still connected or the client is in another room
+            Outbox.of(client).sendError(Protocol.INVALID_TOKEN);
+            return;
+        }
+        playerColor.put(color, client);
+        players.add(client);
+        if (!Heartbeat.of(client).isOpen()) { // closed before it was bound, so GameServer.release did not find this room. Leaves like any dropped player, the seat waits for the grace period
+            GameServer.unbindSession(client, this);
+            disconnect(client);
+            return;
+        }
+        Outbox outbox = Outbox.of(client);
+        outbox.sendEvent(Protocol.START, color); // everything the client needs to continue: its color, the board and whose turn it is
+        handle(Protocol.SYNC, 0, client);
+        outbox.sendEvent(Protocol.NEXTPLAYER, currentPlayer);
+        broadcast(Protocol.BACK, color, client);
+        if (players.size() + botCount == 4) {
+            state = PLAYING;
+        }
+        if (color == currentPlayer) { // the turn starts over for a player that comes back on their turn
+            startTurn();
+        }
+    }
+
+    public void restored() { // called once for a room recovered from the journal, every player has the grace period to reconnect
+        state = AWAY;
+        for (int color = 1; color <= 4; color++) {
+            if (!bots[color]) {
+                awaitReconnect(color, null);
+            }
+        }
+        if (bots[currentPlayer]) {
+            startTurn();
+        }
+    }
+
+    private void awaitReconnect(int color, Session dropped) { // terminates the game if the seat is still held by the dropped session after the grace period
+        TimingWheel.schedule(() -> execute(() -> {
+            if (playerColor.get(color) == dropped) {
+                close();
+            }
+        }), GRACE_PERIOD, TimeUnit.SECONDS);
+    }
+
+    private int getColor(Session player) { // returns the color of a player, 0 if the game did not start yet
+        for (Map.Entry<Integer, Session> entry : playerColor.entrySet()) {
+            if (entry.getValue() == player) {
+                return entry.getKey();
+            }
+        }
+        return 0;
+    }
+
+    public ByteBuffer writeSnapshot() { // the state of the room as a journal record
+        int fields = 8 + Board.PIECES;
+        for (int color = 1; color <= 4; color++) {
+            fields += 1 + tokens[color].length();
+        }
+        ByteBuffer record = Journal.record(Journal.SNAPSHOT, id, fields);
+        record.putInt(sequence);
+        record.put((byte) currentPlayer).put((byte) availableMoves).put((byte) dice).put((byte) tries);
+        board.writeTo(record);
+        for (int color = 1; color <= 4; color++) {
+            record.put((byte) tokens[color].length());
+            for (int i = 0; i < tokens[color].length(); i++) {
+                record.put((byte) tokens[color].charAt(i));
+            }
+        }
+        return record.flip();
+    }
+
+    public void snapshot() { // writes a snapshot of a started game to the journal
+        if (!closed && currentPlayer != 0) {
+            Journal.append(writeSnapshot());
+        }
+    }
+
+    void readSnapshot(ByteBuffer record) { // restores the room from a snapshot, only used during recovery
+        sequence = record.getInt();
+        currentPlayer = record.get();
+        availableMoves = record.get();
+        dice = record.get();
+        tries = record.get();
+        board.readFrom(record);
+        Arrays.fill(bots, false); // recovery replays every snapshot of the room, the last one wins
+        botCount = 0;
+        for (int color = 1; color <= 4; color++) {
+            tokens[color] = Protocol.readId(record);
+            if (tokens[color].isEmpty()) {
+                bots[color] = true;
+                botCount++;
+            }
+        }
+        legalCount = dice != 0 ? Rules.getLegalMoves(board, currentPlayer, dice, legalPieces) : 0;
+    }
+
+    void readChange(byte type, ByteBuffer record) { // applies a MOVE or STATE record, only used during recovery
+        if (type == Journal.MOVE) {
+            sequence = record.getInt();
+            int piece = record.get();
+            int to = record.get();
+            int captured = record.get();
+            int capturedTo = record.get();
+            if (captured != 0) {
+                board.place(captured, capturedTo);
+            }
+            board.place(piece, to);
+        } else if (type == Journal.STATE) {
+            currentPlayer = record.get();
+            availableMoves = record.get();
+            dice = record.get();
+            tries = record.get();
+            legalCount = dice != 0 ? Rules.getLegalMoves(board, currentPlayer, dice, legalPieces) : 0;
+        }
+    }
+
+    private void journalMove(int piece, int captured) {
+        if (Journal.isEnabled() && currentPlayer != 0) {
+            ByteBuffer record = Journal.record(Journal.MOVE, id, 8);
+            record.putInt(sequence).put((byte) piece).put((byte) board.getPosition(piece));
+            record.put((byte) captured).put((byte) (captured != 0 ? board.getPosition(captured) : 0));
+            Journal.append(record.flip());
+        }
+    }
+
+    private void journalState() {
+        if (Journal.isEnabled() && currentPlayer != 0) {
+            ByteBuffer record = Journal.record(Journal.STATE, id, 4);
+            record.put((byte) currentPlayer).put((byte) availableMoves).put((byte) dice).put((byte) tries);
+            Journal.append(record.flip());
+        }
+    }
+
+    public void handOff(String node) { // moves the room to the node that owns its shard now, the players and spectators are redirected once it arrived
+        if (closed || moving) {
+            return;
+        }
+        moving = true;
+        ByteBuffer state = currentPlayer != 0 ? writeSnapshot().position(8) : ByteBuffer.allocate(0); // the record without length and checksum
+        Cluster.transfer(node, id, state).thenAccept(arrived -> execute(() -> handedOff(node, arrived)));
+    }
+
+    private void handedOff(String node, boolean arrived) {
+        moving = false;
+        if (closed) {
+            return;
+        }
+        if (!arrived) { // the node is not reachable yet, the game goes on here until the next try
+            System.out.println("Room " + id + " could not move to " + node + ", trying again in " + HANDOFF_RETRY + "s");
+            TimingWheel.schedule(() -> execute(() -> {
+                String owner = Cluster.ownerOf(id);
+                if (owner != null) {
+                    handOff(owner);
+                }
+            }), HANDOFF_RETRY, TimeUnit.SECONDS);
+            if (currentPlayer != 0) {
+                startTurn(); // commands and timers were ignored while moving
+            }
+            return;
+        }
+        for (Session player : players) {
+            Outbox.of(player).sendId(Protocol.REDIRECT, node); // players of a started game reconnect there with their token, players in the lobby join again
+        }
+        audience.publish("redirect:" + node, Protocol.idFrame(Protocol.REDIRECT, node));
+        close((byte) 0);
+    }
+
+    public void closeLobby() { // closes the room unless its game already started, for the shutdown
+        if (currentPlayer == 0) {
+            close(Protocol.SHUTTING_DOWN);
+        }
+    }
+
+    public void close() { // terminates the game, since it is not playable anymore without all players
+        close(Protocol.PLAYER_DISCONNECTED);
+    }
+
+    private void close(byte error) { // the error tells the remaining players why the room is gone, 0 = they already know
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (lobbyTimeout != null) {
+            lobbyTimeout.cancel();
+        }
+        if (turnTimeout != null) {
+            turnTimeout.cancel();
+        }
+        GameServer.removeRoom(this);
+        if (currentPlayer != 0) {
+            Journal.append(Journal.record(Journal.CLOSE, id, 0).flip());
+        }
+        for (Session player : players) {
+            GameServer.unbindSession(player, this);
+            if (error != 0) {
+                Outbox.of(player).sendError(error);
+            }
+        }
+        players.clear();
+        audience.close(error);
+    }
+
+    private void broadcastBoard(byte command, int piece, int from, int captured, Session sender) { // send a changed board to every player, as the full board or as a delta, as text or binary, depending on the protocol of the player
+        sequence++;
+        journalMove(piece, captured);
+        String fullText = null; // each format is only built if a player needs it, and then only once
+        String deltaText = null;
+        ByteBuffer fullFrame = null;
+        ByteBuffer deltaFrame = null;
+        int to = board.getPosition(piece);
+        for (Session player : players) {
+            Outbox outbox = Outbox.of(player);
+            if (outbox.isDelta()) { // delta clients also get their own moves, so their sequence has no gaps
+                if (outbox.isBinary()) {
+                    if (deltaFrame == null) {
+                        deltaFrame = Protocol.deltaFrame(sequence, command, piece, from, to, captured, captured != 0 ? board.getPosition(captured) : 0);
+                    }
+                    outbox.send(deltaFrame);
+                } else {
+                    if (deltaText == null) {
+                        StringBuilder message = new StringBuilder(48);
+                        message.append("delta:").append(sequence).append(':').append(Protocol.command(command)).append(':');
+                        appendChanges(message, piece, from, to, captured, captured != 0 ? board.getPosition(captured) : 0);
+                        deltaText = message.toString();
+                    }
+                    outbox.send(deltaText);
+                }
+            } else if (player != sender) {
+                if (outbox.isBinary()) {
+                    if (fullFrame == null) {
+                        fullFrame = Protocol.boardFrame(sequence, command, board);
+                    }
+                    outbox.send(fullFrame);
+                } else {
+                    if (fullText == null) {
+                        fullText = Protocol.command(command) + ":" + board;
+                    }
+                    outbox.send(fullText);
+                }
+            }
+        }
+        if (!audience.isEmpty()) { // spectators always get the full board, so the latest event is enough to catch up
+            audience.update(sequence, board);
+            audience.publish(fullText != null ? fullText : Protocol.command(command) + ":" + board, fullFrame != null ? fullFrame : Protocol.boardFrame(sequence, command, board));
+        }
+    }
+
+    private void broadcast(byte command, int value, Session sender) { // send "command:value" to every player in the room except the sender, each format is built once and shared by all players
+        String text = null;
+        ByteBuffer frame = null;
+        for (Session player : players) {
+            if (player != sender) {
+                Outbox outbox = Outbox.of(player);
+                if (outbox.isBinary()) {
+                    if (frame == null) {
+                        frame = Protocol.frame(command, value);
+                    }
+                    outbox.send(frame);
+                } else {
+                    if (text == null) {
+                        text = Protocol.command(command) + ":" + value;
+                    }
+                    outbox.send(text);
+                }
+            }
+        }
+        if (!audience.isEmpty()) { // spectators also see the events of the sender
+            audience.publish(text != null ? text : Protocol.command(command) + ":" + value, frame != null ? frame : Protocol.frame(command, value));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+public final class Rules { // server side rules, used when the server rolls the dice and checks the moves instead of trusting the clients
+    public static final int TRIES = 3; // rolls a player gets per turn while none of their pieces is on the path
+
+    private Rules() {
+    }
+
+    public static int roll() {
+        return ThreadLocalRandom.current().nextInt(1, 7);
+    }
+
+    public static int colorOf(int piece) { // pieces 1-4 are color 1, 5-8 color 2, ...
+        return (piece - 1) / 4 + 1;
+    }
+
+    public static int getTarget(Board board, int piece, int dice) { // returns the field the piece moves to with the dice value, 0 if the move is not allowed
+        int color = colorOf(piece);
+        int from = board.getPosition(piece);
+        int target;
+        if (from <= 16) { // still on a home field, only a 6 moves it out to the start field
+            if (dice != 6) {
+                return 0;
+            }
+            target = GameServer.getStartField(color);
+        } else {
+            target = GameServer.getTargetField(color, from, dice);
+            if (target == 0) { // would go past the last finish field
+                return 0;
+            }
+        }
+        int occupant = board.getOccupant(target);
+        if (occupant != 0 && colorOf(occupant) == color) { // a piece can't throw out a piece of its own color
+            return 0;
+        }
+        return target;
+    }
+
+    public static int getLegalMoves(Board board, int color, int dice, int[] pieces) { // fills pieces with the pieces of the color that can move, returns how many there are
+        int count = 0;
+        int first = (color - 1) * 4 + 1;
+        for (int piece = first; piece < first + 4; piece++) {
+            if (getTarget(board, piece, dice) != 0) {
+                pieces[count++] = piece;
+            }
+        }
+        return count;
+    }
+
+    public static int choose(Board board, int dice, int[] pieces, int count) { // the piece a bot plays out of the legal ones: one that throws out a piece if there is one, else the first
+        for (int i = 0; i < count; i++) {
+            if (board.getOccupant(getTarget(board, pieces[i], dice)) != 0) {
+                return pieces[i];
+            }
+        }
+        return pieces[0];
+    }
+
+    public static boolean isOnPath(Board board, int color) { // true if a piece of the color is on one of the 40 path fields
+        int first = (color - 1) * 4 + 1;
+        for (int piece = first; piece < first + 4; piece++) {
+            if (board.getPosition(piece) > 32) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
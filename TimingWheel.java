@@ -0,0 +1,131 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class TimingWheel { // hashed timing wheel that drives every timeout of the server from one thread, scheduling and cancelling cost O(1) however many timeouts are pending
+    public static final long TICK = 100; // ms per slot, timeouts fire up to one tick late
+    private static final int SLOTS = 512; // power of two, a timeout more than one revolution away waits in its slot for the remaining rounds
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK);
+
+    private static final Queue<Timeout> added = new ConcurrentLinkedQueue<>(); // scheduled by other threads, moved into the wheel on the next tick
+    private static final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>(); // cancelled by other threads, unlinked on the next tick
+    private static final Timeout[] wheel = new Timeout[SLOTS]; // head of the list of each slot, only touched by the wheel thread
+    private static final long start = System.nanoTime();
+    private static long tick = 0; // next tick to process, only touched by the wheel thread
+
+    private static final int PENDING = 0; // states of a timeout
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    static {
+        Thread thread = new Thread(TimingWheel::run, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private TimingWheel() {
+    }
+
+    public static final class Timeout {
+        private final Runnable task;
+        private long deadline; // tick the timeout fires at
+        private long rounds; // revolutions left before the timeout fires
+        private int slot = -1; // -1 = not in the wheel (yet)
+        private Timeout previous;
+        private Timeout next;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() { // returns false if the timeout already fired or was cancelled before
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                cancelled.add(this);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public static Timeout schedule(Runnable task, long delay, TimeUnit unit) { // runs the task on the wheel thread after the delay, the task must not block
+        long deadline = (System.nanoTime() - start + unit.toNanos(delay) + TICK_NANOS - 1) / TICK_NANOS;
+        Timeout timeout = new Timeout(task, deadline);
+        added.add(timeout);
+        return timeout;
+    }
+
+    private static void run() {
+        while (true) {
+            long now = (System.nanoTime() - start) / TICK_NANOS;
+            while (tick <= now) {
+                transfer();
+                expire(wheel[(int) (tick & (SLOTS - 1))]);
+                tick++;
+            }
+            try {
+                Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(tick * TICK_NANOS - (System.nanoTime() - start))));
+            } catch (InterruptedException e) {
+                return; // exits with the JVM
+            }
+        }
+    }
+
+    private static void transfer() { // moves new timeouts into their slots and unlinks the cancelled ones
+        for (Timeout timeout = added.poll(); timeout != null; timeout = added.poll()) {
+            if (timeout.state.get() != PENDING) {
+                continue;
+            }
+            if (timeout.deadline < tick) { // scheduled while the wheel was behind, fires on this tick
+                timeout.deadline = tick;
+            }
+            timeout.rounds = (timeout.deadline - tick) / SLOTS;
+            timeout.slot = (int) (timeout.deadline & (SLOTS - 1));
+            timeout.next = wheel[timeout.slot];
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            wheel[timeout.slot] = timeout;
+        }
+        for (Timeout timeout = cancelled.poll(); timeout != null; timeout = cancelled.poll()) {
+            if (timeout.slot >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private static void expire(Timeout timeout) { // fires the timeouts of the slot that are due, the others wait another round
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private static void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            wheel[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+}
@@ -0,0 +1,143 @@
+import com.maedn.benchmarks.Bridge;
+import com.maedn.benchmarks.StubSession;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class BenchmarkBridge implements Bridge { // gives the benchmarks access to the server classes, one instance per benchmark state
+    private final GameServer server = new GameServer();
+    private final Board board = new Board();
+    private final StubSession[] players = new StubSession[4];
+    private Room room;
+    private StubSession[] sessions = new StubSession[0];
+    private Room[] owners = new Room[0]; // room of each session, needed to unbind it again
+
+    @Override
+    public void startGame(boolean binary) throws Exception {
+        createAndJoin(binary);
+        for (StubSession player : players) {
+            room.handle(Protocol.READY, 1, player);
+        }
+    }
+
+    @Override
+    public void createAndJoin(boolean binary) throws Exception { // called directly instead of through the mailbox, the benchmark thread is the only one using the room
+        for (int i = 1; room != null && i < 4; i++) { // join registered the sessions of the previous room
+            GameServer.unbindSession(players[i], room);
+        }
+        room = new Room("bench");
+        for (int i = 0; i < 4; i++) {
+            players[i] = new StubSession("bench-" + i);
+            Outbox.of(players[i]).setBinary(binary);
+        }
+        room.create(players[0]);
+        for (int i = 1; i < 4; i++) {
+            room.join(players[i]);
+        }
+    }
+
+    @Override
+    public ByteBuffer encode(String message) {
+        int separator = message.indexOf(':');
+        byte opcode = Protocol.opcode(separator < 0 ? message : message.substring(0, separator));
+        return Protocol.frame(opcode, Protocol.parseValue(opcode, separator < 0 ? "" : message.substring(separator + 1)));
+    }
+
+    @Override
+    public void dispatch(String message, int player) throws Exception {
+        int separator = message.indexOf(':');
+        String command = separator < 0 ? message : message.substring(0, separator);
+        String data = separator < 0 ? "" : message.substring(separator + 1);
+        byte opcode = Protocol.opcode(command);
+        room.handle(opcode, Protocol.parseValue(opcode, data), players[player]);
+    }
+
+    @Override
+    public void dispatch(ByteBuffer frame, int player) throws Exception {
+        ByteBuffer message = frame.duplicate();
+        byte opcode = message.get();
+        room.handle(opcode, message.hasRemaining() ? message.get() : 0, players[player]);
+    }
+
+    @Override
+    public long sent() {
+        long sent = 0;
+        for (StubSession player : players) {
+            sent += player.sent;
+        }
+        return sent;
+    }
+
+    @Override
+    public int move(int piece, int field) {
+        return board.move(piece, field);
+    }
+
+    @Override
+    public void place(int piece, int field) {
+        board.place(piece, field);
+    }
+
+    @Override
+    public int freeHomeField(int piece) {
+        return board.freeHomeField(piece);
+    }
+
+    @Override
+    public int getStartField(int color) {
+        return GameServer.getStartField(color);
+    }
+
+    @Override
+    public String boardText() {
+        return board.toString();
+    }
+
+    @Override
+    public ByteBuffer boardFrame() {
+        return Protocol.boardFrame(1, Protocol.MOVE, board);
+    }
+
+    @Override
+    public ByteBuffer deltaFrame(int piece, int from, int to, int captured, int capturedTo) {
+        return Protocol.deltaFrame(1, Protocol.MOVE, piece, from, to, captured, capturedTo);
+    }
+
+    @Override
+    public int targetFromColorPath(int color, int field, int steps) {
+        List<Integer> path = GameServer.getColorPath(color);
+        int index = path.indexOf(field) + steps;
+        return index < path.size() ? path.get(index) : 0;
+    }
+
+    @Override
+    public int targetFromTable(int color, int field, int steps) {
+        return GameServer.getTargetField(color, field, steps);
+    }
+
+    @Override
+    public void bindSessions(int rooms) {
+        sessions = new StubSession[rooms * 4];
+        owners = new Room[rooms * 4];
+        for (int i = 0; i < rooms; i++) {
+            Room room = new Room(Integer.toString(i));
+            for (int j = 0; j < 4; j++) {
+                sessions[i * 4 + j] = new StubSession(i + "-" + j);
+                owners[i * 4 + j] = room;
+                GameServer.bindSession(sessions[i * 4 + j], room);
+            }
+        }
+    }
+
+    @Override
+    public void unbindSessions() {
+        for (int i = 0; i < sessions.length; i++) {
+            GameServer.unbindSession(sessions[i], owners[i]);
+        }
+    }
+
+    @Override
+    public String getRoomIdFromSession(int session) {
+        return server.getRoomIdFromSession(sessions[session]);
+    }
+}
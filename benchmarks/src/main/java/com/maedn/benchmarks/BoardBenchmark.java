@@ -0,0 +1,42 @@
+package com.maedn.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBenchmark { // the capture logic behind move and movepieceout
+    private Bridge bridge;
+    private int startField;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        bridge = Bridge.create();
+        bridge.move(1, 40); // a piece of color 1 on the path
+        startField = bridge.getStartField(1);
+    }
+
+    @Benchmark
+    public int moveWithCapture() { // color 2 throws out piece 1 and piece 1 comes back, two captures per call
+        int captured = bridge.move(5, 40);
+        return captured + bridge.move(1, 40);
+    }
+
+    @Benchmark
+    public int moveWithoutCapture() {
+        bridge.move(2, 50);
+        return bridge.move(2, 51);
+    }
+
+    @Benchmark
+    public int movePieceOut() { // out to the start field and back to a free home field
+        int captured = bridge.move(3, startField);
+        bridge.place(3, bridge.freeHomeField(3));
+        return captured;
+    }
+}
@@ -0,0 +1,53 @@
+package com.maedn.benchmarks;
+
+import java.nio.ByteBuffer;
+
+public interface Bridge { // the server classes are in the default package, which JMH benchmarks can't import, so they are called through this. Implemented by BenchmarkBridge
+    static Bridge create() {
+        try {
+            return (Bridge) Class.forName("BenchmarkBridge").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkBridge is missing", e);
+        }
+    }
+
+    // rooms and commands
+    void startGame(boolean binary) throws Exception; // a room whose four players are ready, color i + 1 is player i
+
+    void createAndJoin(boolean binary) throws Exception; // a new room, created by one player and joined by three
+
+    ByteBuffer encode(String message); // the binary frame of a text command
+
+    void dispatch(String message, int player) throws Exception; // decodes a text command like GameServer.onMessage and runs it in the room
+
+    void dispatch(ByteBuffer frame, int player) throws Exception;
+
+    long sent(); // messages sent to all players so far
+
+    // board
+    int move(int piece, int field);
+
+    void place(int piece, int field);
+
+    int freeHomeField(int piece);
+
+    int getStartField(int color);
+
+    String boardText();
+
+    ByteBuffer boardFrame();
+
+    ByteBuffer deltaFrame(int piece, int from, int to, int captured, int capturedTo);
+
+    // color paths
+    int targetFromColorPath(int color, int field, int steps); // the lookup through the list of getColorPath
+
+    int targetFromTable(int color, int field, int steps);
+
+    // session index
+    void bindSessions(int rooms); // registers rooms with four sessions each
+
+    void unbindSessions();
+
+    String getRoomIdFromSession(int session);
+}
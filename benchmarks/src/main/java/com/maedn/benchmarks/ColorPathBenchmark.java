@@ -0,0 +1,34 @@
+package com.maedn.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorPathBenchmark { // target field of a move, the list of getColorPath against the precomputed table
+    @Param({"1", "4"})
+    public int color;
+
+    private final Bridge bridge = Bridge.create();
+    private int field;
+
+    @Setup
+    public void setUp() {
+        field = bridge.getStartField(color);
+    }
+
+    @Benchmark
+    public int colorPath() {
+        return bridge.targetFromColorPath(color, field, 5);
+    }
+
+    @Benchmark
+    public int targetField() {
+        return bridge.targetFromTable(color, field, 5);
+    }
+}
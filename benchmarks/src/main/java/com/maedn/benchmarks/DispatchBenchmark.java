@@ -0,0 +1,59 @@
+package com.maedn.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark { // decoding a command and running it in a started room, like onMessage does but without the mailbox hop
+    @Param({"ready:true", "visualroll:4", "roll:3", "pieceoutroll:6", "nextplayer", "sync", "move:1", "movewin:1", "movepieceout:1"})
+    public String command;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private final Bridge bridge = Bridge.create();
+    private boolean binary;
+    private boolean moves; // move and movewin first put the piece back on the start field, so every call moves the same distance
+    private boolean rotates; // nextplayer has to be sent by the player whose turn it is
+    private ByteBuffer frame;
+    private ByteBuffer pieceOutFrame;
+    private int player = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        binary = format.equals("binary");
+        moves = command.startsWith("move:") || command.startsWith("movewin:");
+        rotates = command.equals("nextplayer");
+        bridge.startGame(binary);
+        bridge.dispatch("roll:3", 0); // moves go 3 fields
+        frame = bridge.encode(command);
+        pieceOutFrame = bridge.encode("movepieceout:1");
+    }
+
+    @Benchmark
+    public long dispatch() throws Exception {
+        if (moves) {
+            run("movepieceout:1", pieceOutFrame);
+        }
+        run(command, frame);
+        if (rotates) {
+            player = (player + 1) % 4;
+        }
+        return bridge.sent();
+    }
+
+    private void run(String message, ByteBuffer messageFrame) throws Exception {
+        if (binary) {
+            bridge.dispatch(messageFrame, player);
+        } else {
+            bridge.dispatch(message, player);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.maedn.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmaedn.timeout.lobby=0") // otherwise every created room stays on the timing wheel for the lobby timeout and the rooms pile up during the run
+public class LobbyBenchmark { // create and join, a new room joined by three players
+    @Param({"text", "binary"})
+    public String format;
+
+    private final Bridge bridge = Bridge.create();
+
+    @Benchmark
+    public long createAndJoin() throws Exception {
+        bridge.createAndJoin(format.equals("binary"));
+        return bridge.sent();
+    }
+}
@@ -0,0 +1,35 @@
+package com.maedn.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomLookupBenchmark { // getRoomIdFromSession while the amount of live rooms grows, should stay flat
+    @Param({"10", "1000", "100000"})
+    public int rooms;
+
+    private final Bridge bridge = Bridge.create();
+
+    @Setup
+    public void setUp() {
+        bridge.bindSessions(rooms);
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.unbindSessions();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getRoomIdFromSession() {
+        return bridge.getRoomIdFromSession(ThreadLocalRandom.current().nextInt(rooms * 4));
+    }
+}
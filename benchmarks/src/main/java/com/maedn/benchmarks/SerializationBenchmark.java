@@ -0,0 +1,38 @@
+package com.maedn.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark { // the encodings a board broadcast can use
+    private final Bridge bridge = Bridge.create();
+
+    @Setup
+    public void setUp() {
+        bridge.move(1, 40);
+        bridge.move(6, 55);
+        bridge.move(11, 62);
+    }
+
+    @Benchmark
+    public String fullText() {
+        return bridge.boardText();
+    }
+
+    @Benchmark
+    public ByteBuffer fullBinary() {
+        return bridge.boardFrame();
+    }
+
+    @Benchmark
+    public ByteBuffer deltaBinary() {
+        return bridge.deltaFrame(1, 37, 40, 6, 6);
+    }
+}
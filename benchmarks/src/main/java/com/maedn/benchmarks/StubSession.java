@@ -0,0 +1,224 @@
+package com.maedn.benchmarks;
+
+import javax.websocket.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+public class StubSession implements Session { // a session without a network, every send completes at once so benchmarks measure only the server code
+    private static final SendResult OK = new SendResult();
+
+    private final String id;
+    private final Map<String, Object> userProperties = new HashMap<>();
+    private final Remote remote = new Remote();
+    public long sent = 0; // messages sent to this session, read it so the sends can't be optimized away
+
+    public StubSession(String id) {
+        this.id = id;
+    }
+
+    private class Remote implements RemoteEndpoint.Async {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            sent++;
+            handler.onResult(OK);
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer data, SendHandler handler) {
+            sent++;
+            handler.onResult(OK);
+        }
+
+        @Override
+        public Future<Void> sendText(String text) {
+            sent++;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public Future<Void> sendBinary(ByteBuffer data) {
+            sent++;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public Future<Void> sendObject(Object data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendObject(Object data, SendHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getSendTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setSendTimeout(long timeout) {
+        }
+
+        @Override
+        public void setBatchingAllowed(boolean allowed) {
+        }
+
+        @Override
+        public boolean getBatchingAllowed() {
+            return false;
+        }
+
+        @Override
+        public void flushBatch() {
+        }
+
+        @Override
+        public void sendPing(ByteBuffer data) {
+        }
+
+        @Override
+        public void sendPong(ByteBuffer data) {
+        }
+    }
+
+    @Override
+    public RemoteEndpoint.Async getAsyncRemote() {
+        return remote;
+    }
+
+    @Override
+    public RemoteEndpoint.Basic getBasicRemote() {
+        throw new UnsupportedOperationException("the server only sends asynchronously");
+    }
+
+    @Override
+    public Map<String, Object> getUserProperties() {
+        return userProperties;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void close(CloseReason reason) {
+    }
+
+    @Override
+    public WebSocketContainer getContainer() {
+        return null;
+    }
+
+    @Override
+    public void addMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> type, MessageHandler.Whole<T> handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> type, MessageHandler.Partial<T> handler) {
+    }
+
+    @Override
+    public Set<MessageHandler> getMessageHandlers() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void removeMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return "13";
+    }
+
+    @Override
+    public String getNegotiatedSubprotocol() {
+        return null;
+    }
+
+    @Override
+    public List<Extension> getNegotiatedExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public long getMaxIdleTimeout() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxIdleTimeout(long timeout) {
+    }
+
+    @Override
+    public void setMaxBinaryMessageBufferSize(int size) {
+    }
+
+    @Override
+    public int getMaxBinaryMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxTextMessageBufferSize(int size) {
+    }
+
+    @Override
+    public int getMaxTextMessageBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestParameterMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getPathParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public Set<Session> getOpenSessions() {
+        return Collections.emptySet();
+    }
+}